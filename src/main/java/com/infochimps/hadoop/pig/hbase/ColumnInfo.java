@@ -0,0 +1,98 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.pig.data.DataType;
+
+/**
+ * Class to encapsulate logic around which column names were specified in each
+ * position of the column list. Users can specify columns names in one of 4
+ * ways: 'Foo:', 'Foo:*', 'Foo:bar*' or 'Foo:bar'. The first 3 result in a
+ * Map being added to the tuple, while the last results in a scalar. The 3rd
+ * form results in a prefix-filtered Map. Any of them may end in a declared
+ * type, as in 'info:age#int', which scalars and family values are decoded to;
+ * the default is bytearray. Whatever follows the last '#' must be one of bytearray,
+ * chararray, int, long, float or double, so a qualifier containing '#' needs a type of
+ * its own, as in 'info:a#b#bytearray'.
+ */
+class ColumnInfo {
+
+    private final static String ASTERISK = "*";
+    private final static String COLON = ":";
+    private final static String HASH = "#";
+
+    private final static Map<String, Byte> TYPES = new HashMap<String, Byte>();
+    static {
+        TYPES.put("bytearray", DataType.BYTEARRAY);
+        TYPES.put("chararray", DataType.CHARARRAY);
+        TYPES.put("int", DataType.INTEGER);
+        TYPES.put("long", DataType.LONG);
+        TYPES.put("float", DataType.FLOAT);
+        TYPES.put("double", DataType.DOUBLE);
+    }
+
+    final String originalColumnName;  // always set
+    final byte[] columnFamily; // always set
+    final byte[] columnName; // set if it exists and doesn't contain '*'
+    final byte[] columnPrefix; // set if contains a prefix followed by '*'
+    final byte type; // bytearray unless declared with a '#type' suffix
+
+    public ColumnInfo(String colName) {
+        originalColumnName = colName;
+        int hash = colName.lastIndexOf(HASH);
+        if (hash >= 0) {
+            Byte declared = TYPES.get(colName.substring(hash + 1));
+            if (declared == null) {
+                throw new IllegalArgumentException("Unknown type '" + colName.substring(hash + 1) + "' in column " +
+                                                   colName + "; expected one of " + TYPES.keySet());
+            }
+            type = declared;
+            colName = colName.substring(0, hash);
+        } else {
+            type = DataType.BYTEARRAY;
+        }
+        String[] cfAndColumn = colName.split(COLON, 2);
+
+        //CFs are byte[1] and columns are byte[2]
+        columnFamily = Bytes.toBytes(cfAndColumn[0]);
+        if (cfAndColumn.length > 1 &&
+                cfAndColumn[1].length() > 0 && !ASTERISK.equals(cfAndColumn[1])) {
+            if (cfAndColumn[1].endsWith(ASTERISK)) {
+                columnPrefix = Bytes.toBytes(cfAndColumn[1].substring(0,
+                        cfAndColumn[1].length() - 1));
+                columnName = null;
+            }
+            else {
+                columnName   = Bytes.toBytes(cfAndColumn[1]);
+                columnPrefix = null;
+            }
+        } else {
+          columnPrefix = null;
+          columnName   = null;
+        }
+    }
+
+    public byte[] getColumnFamily() { return columnFamily; }
+    public byte[] getColumnName()   { return columnName; }
+    public byte[] getColumnPrefix() { return columnPrefix; }
+    public boolean isColumnMap()    { return columnName == null; }
+    public byte getType()           { return type; }
+    
+    public boolean hasPrefixMatch(byte[] qualifier) {
+        return Bytes.startsWith(qualifier, columnPrefix);
+    }
+
+    /**
+       Prefix match against a qualifier that lives inside a larger buffer, such as a KeyValue's.
+     */
+    public boolean hasPrefixMatch(byte[] buffer, int offset, int length) {
+        if (columnPrefix == null) return true;
+        return length >= columnPrefix.length &&
+            Bytes.compareTo(buffer, offset, columnPrefix.length, columnPrefix, 0, columnPrefix.length) == 0;
+    }
+
+    @Override
+    public String toString() { return originalColumnName; }
+}
@@ -0,0 +1,91 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.mapreduce.TableSplit;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+/**
+   An input split made of several TableSplits that are read one after the other by a single
+   task. The sub-splits are kept sorted by start row; they are ordered with respect to other
+   splits only when they are adjacent in key order (see isOrdered). The split reports the
+   estimated store-file size of its regions as its length and a single location, the region
+   server hosting most of its data.
+ */
+public class CombinedTableSplit extends InputSplit implements Writable {
+
+    private List<TableSplit> splits_;
+    private String location_;
+    private long length_;
+    private boolean ordered_;
+
+    public CombinedTableSplit() {
+        this(new ArrayList<TableSplit>(), "", 0, false);
+    }
+
+    /**
+       @param ordered whether no other split's key range falls between those of the sub-splits
+     */
+    public CombinedTableSplit(List<TableSplit> splits, String location, long length, boolean ordered) {
+        splits_ = new ArrayList<TableSplit>(splits);
+        Collections.sort(splits_);
+        location_ = location;
+        length_ = length;
+        ordered_ = ordered;
+    }
+
+    public List<TableSplit> getSplits() { return splits_; }
+    public String getRegionLocation()   { return location_; }
+    public boolean isOrdered()          { return ordered_; }
+
+    /**
+       The first row this split will read, used to order combined splits.
+     */
+    public byte[] getStartRow() {
+        return splits_.isEmpty() ? new byte[0] : splits_.get(0).getStartRow();
+    }
+
+    @Override
+    public long getLength() {
+        return length_;
+    }
+
+    @Override
+    public String[] getLocations() {
+        return new String[] {location_};
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(splits_.size());
+        for (TableSplit split : splits_) {
+            split.write(out);
+        }
+        out.writeUTF(location_);
+        out.writeLong(length_);
+        out.writeBoolean(ordered_);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        int numSplits = in.readInt();
+        splits_ = new ArrayList<TableSplit>(numSplits);
+        for (int i = 0; i < numSplits; i++) {
+            TableSplit split = new TableSplit();
+            split.readFields(in);
+            splits_.add(split);
+        }
+        location_ = in.readUTF();
+        length_ = in.readLong();
+        ordered_ = in.readBoolean();
+    }
+
+    @Override
+    public String toString() {
+        return location_ + ":" + splits_.size() + " regions, " + length_ + " bytes";
+    }
+}
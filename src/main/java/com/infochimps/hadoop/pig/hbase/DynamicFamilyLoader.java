@@ -0,0 +1,265 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.File;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
+import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
+import org.apache.hadoop.hbase.mapreduce.TableMapReduceUtil;
+import org.apache.hadoop.hbase.util.Base64;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.pig.LoadFunc;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.util.Utils;
+
+import com.infochimps.hadoop.util.HadoopUtils;
+import com.infochimps.hadoop.pig.hbase.HBaseTableInputFormat.HBaseTableIFBuilder;
+
+/**
+ * The loading counterpart of DynamicFamilyStorage. Every cell of the table becomes its own tuple:
+ *
+ * (row_key, column_family, column_name, column_value)
+ *
+ * OR, with -loadTimestamp,
+ *
+ * (row_key, column_family, column_name, column_value, timestamp)
+ *
+ * Cells are emitted straight from the scanner, and rows are fetched in batches of at most
+ * -batch cells, so even rows with millions of columns are loaded in constant memory. Output
+ * can be stored back with DynamicFamilyStorage unchanged.
+ * <pre>{@code
+ * cells = LOAD 'hbase://graph' USING com.infochimps.hadoop.pig.hbase.DynamicFamilyLoader('-families edges -prefix user_');
+ * }</pre>
+ */
+public class DynamicFamilyLoader extends LoadFunc {
+
+    private static final Log LOG = LogFactory.getLog(DynamicFamilyLoader.class);
+
+    private final static String COMMA = ",";
+
+    private Configuration m_conf;
+    private RecordReader reader;
+    private Scan scan;
+
+    private final CommandLine configuredOptions_;
+    private final static Options validOptions_ = new Options();
+    private final static CommandLineParser parser_ = new GnuParser();
+
+    private final boolean loadTimestamp_;
+    private final int caching_;
+    private final int batch_;
+    private final int maxTableSplits_;
+    private final String hbaseConfig_;
+
+    protected transient byte[] gt_;
+    protected transient byte[] gte_;
+    protected transient byte[] lt_;
+    protected transient byte[] lte_;
+
+    private Result result_;
+    private int cell_;
+    private DataByteArray rowKey_;
+
+    private static final String HAS_BEEN_UPLOADED = "hbase.config.has_been_uploaded";
+    private static final String HBASE_CONFIG_HDFS_PATH = "/tmp/hbase/hbase-site.xml"; // this will be overwritten
+    private static final String LOCAL_SCHEME = "file://";
+
+    private static void populateValidOptions() {
+        validOptions_.addOption("families", true, "Comma separated list of column families to load (default: all)");
+        validOptions_.addOption("prefix", true, "Only load columns whose names start with this prefix");
+        validOptions_.addOption("loadTimestamp", false, "Append each cell's timestamp to its tuple");
+        validOptions_.addOption("gt", true, "Records must be greater than this value " +
+                "(binary, double-slash-escaped)");
+        validOptions_.addOption("lt", true, "Records must be less than this value (binary, double-slash-escaped)");
+        validOptions_.addOption("gte", true, "Records must be greater than or equal to this value");
+        validOptions_.addOption("lte", true, "Records must be less than or equal to this value");
+        validOptions_.addOption("caching", true, "Number of rows scanners should cache");
+        validOptions_.addOption("batch", true, "Maximum number of cells to fetch from a row at once");
+        validOptions_.addOption("maxTableSplits", true, "Input splits (one per region) are combined until the total number of splits is no more than maxTableSplits");
+        validOptions_.addOption("config", true, "Full path to local hbase-site.xml");
+    }
+
+    public DynamicFamilyLoader() throws ParseException, IOException {
+        this("");
+    }
+
+    /**
+     * @param optString Loader options. Known options:<ul>
+     * <li>-families=cf1,cf2  only load these column families
+     * <li>-prefix=prefix  only load columns whose names start with prefix
+     * <li>-loadTimestamp  append the cell timestamp as a fifth field
+     * <li>-gt, -gte, -lt, -lte  row key bounds, as for StaticFamilyStorage
+     * <li>-caching=numRows  number of rows to cache (faster scans, more memory).
+     * <li>-batch=numCells  maximum number of cells of one row held in memory at once
+     * </ul>
+     */
+    public DynamicFamilyLoader(String optString) throws ParseException, IOException {
+        populateValidOptions();
+        String[] optsArr = optString.split(" ");
+        try {
+            configuredOptions_ = parser_.parse(validOptions_, optsArr);
+        } catch (ParseException e) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp( "[-config] [-families] [-prefix] [-loadTimestamp] [-gt] [-gte] [-lt] [-lte] [-caching] [-batch] [-maxTableSplits]", validOptions_ );
+            throw e;
+        }
+
+        m_conf = HBaseConfiguration.create();
+        loadTimestamp_ = configuredOptions_.hasOption("loadTimestamp");
+        hbaseConfig_ = configuredOptions_.getOptionValue("config", "/etc/hbase/conf/hbase-site.xml");
+        caching_ = Integer.valueOf(configuredOptions_.getOptionValue("caching", "1000"));
+        batch_ = Integer.valueOf(configuredOptions_.getOptionValue("batch", "1000"));
+        maxTableSplits_ = Integer.valueOf(configuredOptions_.getOptionValue("maxTableSplits", "100"));
+        initScan();
+    }
+
+    private void initScan() {
+        scan = new Scan();
+        scan.setCaching(caching_);
+        scan.setBatch(batch_);
+
+        if (configuredOptions_.hasOption("gt")) {
+            gt_ = Bytes.toBytesBinary(Utils.slashisize(configuredOptions_.getOptionValue("gt")));
+        }
+        if (configuredOptions_.hasOption("lt")) {
+            lt_ = Bytes.toBytesBinary(Utils.slashisize(configuredOptions_.getOptionValue("lt")));
+        }
+        if (configuredOptions_.hasOption("gte")) {
+            gte_ = Bytes.toBytesBinary(Utils.slashisize(configuredOptions_.getOptionValue("gte")));
+        }
+        if (configuredOptions_.hasOption("lte")) {
+            lte_ = Bytes.toBytesBinary(Utils.slashisize(configuredOptions_.getOptionValue("lte")));
+        }
+        KeyRange range = KeyRange.fromBounds(gt_, gte_, lt_, lte_);
+        scan.setStartRow(range.getStart());
+        scan.setStopRow(range.getStop());
+
+        if (configuredOptions_.hasOption("families")) {
+            for (String family : configuredOptions_.getOptionValue("families").split(COMMA)) {
+                scan.addFamily(Bytes.toBytes(family));
+            }
+        }
+        if (configuredOptions_.hasOption("prefix")) {
+            byte[] prefix = Bytes.toBytes(configuredOptions_.getOptionValue("prefix"));
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Adding column prefix filter " + Bytes.toString(prefix));
+            }
+            scan.setFilter(new ColumnPrefixFilter(prefix));
+        }
+    }
+
+    @Override
+    public Tuple getNext() throws IOException {
+        try {
+            while (result_ == null || cell_ >= result_.size()) {
+                if (!reader.nextKeyValue()) return null;
+                result_ = (Result) reader.getCurrentValue();
+                rowKey_ = new DataByteArray(result_.getRow());
+                cell_ = 0;
+            }
+            KeyValue kv = result_.raw()[cell_++];
+            byte[] buffer = kv.getBuffer();
+
+            Tuple tuple = TupleFactory.getInstance().newTuple(loadTimestamp_ ? 5 : 4);
+            tuple.set(0, rowKey_);
+            tuple.set(1, Bytes.toString(buffer, kv.getFamilyOffset(), kv.getFamilyLength()));
+            tuple.set(2, Bytes.toString(buffer, kv.getQualifierOffset(), kv.getQualifierLength()));
+            tuple.set(3, ResultDecoder.value(kv));
+            if (loadTimestamp_) {
+                tuple.set(4, kv.getTimestamp());
+            }
+            return tuple;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public InputFormat getInputFormat() {
+        return new HBaseTableIFBuilder()
+            .withLimit(-1)
+            .withMaxSplits(maxTableSplits_)
+            .withGt(gt_)
+            .withGte(gte_)
+            .withLt(lt_)
+            .withLte(lte_)
+            .withConf(m_conf)
+            .build();
+    }
+
+    @Override
+    public void prepareToRead(RecordReader reader, PigSplit split) {
+        this.reader = reader;
+        this.result_ = null;
+    }
+
+    @Override
+    public void setLocation(String location, Job job) throws IOException {
+        m_conf = job.getConfiguration();
+
+        HBaseConfiguration.addHbaseResources(m_conf);
+        if (m_conf.get(HAS_BEEN_UPLOADED) == null) {
+            HadoopUtils.uploadLocalFile(new Path(LOCAL_SCHEME+hbaseConfig_), new Path(HBASE_CONFIG_HDFS_PATH), m_conf);
+            HadoopUtils.shipIfNotShipped(new Path(HBASE_CONFIG_HDFS_PATH), m_conf);
+            m_conf.set(HAS_BEEN_UPLOADED, "true");
+        }
+        String taskConfig = HadoopUtils.fetchFromCache((new File(hbaseConfig_)).getName(), m_conf);
+        if (taskConfig == null) taskConfig = hbaseConfig_;
+        m_conf.addResource(new Path(LOCAL_SCHEME+taskConfig));
+
+        TableMapReduceUtil.addDependencyJars(job.getConfiguration(),
+            org.apache.hadoop.hbase.client.HTable.class,
+            com.google.common.collect.Lists.class,
+            org.apache.zookeeper.ZooKeeper.class);
+
+        String tablename = location;
+        if (location.startsWith("hbase://")){
+           tablename = location.substring(8);
+        }
+        m_conf.set(TableInputFormat.INPUT_TABLE, tablename);
+        if (m_conf.get(TableInputFormat.SCAN) == null) {
+            m_conf.set(TableInputFormat.SCAN, convertScanToString(scan));
+        }
+    }
+
+    @Override
+    public String relativeToAbsolutePath(String location, Path curDir)
+    throws IOException {
+        return location;
+    }
+
+    private static String convertScanToString(Scan scan) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(out);
+            scan.write(dos);
+            return Base64.encodeBytes(out.toByteArray());
+        } catch (IOException e) {
+            LOG.error(e);
+            return "";
+        }
+    }
+}
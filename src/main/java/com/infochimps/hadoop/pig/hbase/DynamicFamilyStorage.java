@@ -66,7 +66,8 @@ import com.google.common.collect.Lists;
  *
  * (row_key, column_family, column_name, column_value, timestamp)
  *
- * Note that this is _only_ for storing data into and not for loading data from Hbase.
+ * Note that this is _only_ for storing data into and not for loading data from Hbase. Use
+ * DynamicFamilyLoader to load tables back in this shape.
  *
  */
 public class DynamicFamilyStorage extends StoreFunc implements StoreFuncInterface {
@@ -0,0 +1,175 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.pig.backend.executionengine.ExecException;
+
+/**
+   The cells of one column family (or qualifier prefix) of a row as a read-only Pig map from
+   qualifier to value. It is a view over a run of the Result's sorted KeyValue array: nothing
+   is copied when the map is built, a lookup is a binary search over the run, and a value is
+   only decoded when it is read. Only the newest version of each cell is visible.
+ */
+class FamilyMap extends AbstractMap<String, Object> {
+
+    private final ResultDecoder decoder_;
+    private final KeyValue[] cells_;
+    private final int from_;
+    private final int to_;
+    private final byte type_;
+    private int size_ = -1;
+    private Set<Map.Entry<String, Object>> entrySet_;
+
+    /**
+       @param cells the row's cells; those in [from, to) must all belong to the map
+     */
+    FamilyMap(ResultDecoder decoder, KeyValue[] cells, int from, int to, byte type) {
+        decoder_ = decoder;
+        cells_ = cells;
+        from_ = from;
+        to_ = to;
+        type_ = type;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = find(key);
+        return (i < 0) ? null : decode(cells_[i]);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        if (size_ < 0) {
+            int size = 0;
+            for (int i = from_; i < to_; i++) {
+                if (i == from_ || !ResultDecoder.sameColumn(cells_[i - 1], cells_[i])) size++;
+            }
+            size_ = size;
+        }
+        return size_;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return from_ == to_;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (entrySet_ == null) {
+            entrySet_ = new AbstractSet<Map.Entry<String, Object>>() {
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    return new EntryIterator();
+                }
+
+                public int size() {
+                    return FamilyMap.this.size();
+                }
+            };
+        }
+        return entrySet_;
+    }
+
+    /**
+       Index of the newest cell with the given qualifier, or -1. Versions of a cell are sorted
+       newest first, so that is the first cell not less than the qualifier.
+     */
+    private int find(Object key) {
+        if (!(key instanceof String)) return -1;
+        byte[] qualifier = Bytes.toBytes((String) key);
+        int low = from_;
+        int high = to_;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareQualifier(cells_[mid], qualifier) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return (low < to_ && compareQualifier(cells_[low], qualifier) == 0) ? low : -1;
+    }
+
+    private static int compareQualifier(KeyValue kv, byte[] qualifier) {
+        return Bytes.compareTo(kv.getBuffer(), kv.getQualifierOffset(), kv.getQualifierLength(),
+                               qualifier, 0, qualifier.length);
+    }
+
+    private Object decode(KeyValue kv) {
+        try {
+            return decoder_.familyValue(kv, type_);
+        } catch (ExecException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+        private int next_ = from_;
+
+        public boolean hasNext() {
+            return next_ < to_;
+        }
+
+        public Map.Entry<String, Object> next() {
+            if (next_ >= to_) throw new NoSuchElementException();
+            final KeyValue kv = cells_[next_++];
+            while (next_ < to_ && ResultDecoder.sameColumn(kv, cells_[next_])) next_++;
+            return new Map.Entry<String, Object>() {
+                private boolean decoded_ = false;
+                private Object value_;
+
+                public String getKey() {
+                    return Bytes.toString(kv.getBuffer(), kv.getQualifierOffset(), kv.getQualifierLength());
+                }
+
+                public Object getValue() {
+                    if (!decoded_) {
+                        value_ = decode(kv);
+                        decoded_ = true;
+                    }
+                    return value_;
+                }
+
+                public Object setValue(Object value) {
+                    throw new UnsupportedOperationException("Column family maps are read-only");
+                }
+
+                @Override
+                public boolean equals(Object o) {
+                    if (!(o instanceof Map.Entry)) return false;
+                    Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+                    Object value = getValue();
+                    return getKey().equals(other.getKey()) &&
+                        (value == null ? other.getValue() == null : value.equals(other.getValue()));
+                }
+
+                @Override
+                public int hashCode() {
+                    Object value = getValue();
+                    return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+                }
+
+                @Override
+                public String toString() {
+                    return getKey() + "=" + getValue();
+                }
+            };
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("Column family maps are read-only");
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.util.UDFContext;
+
+import com.infochimps.hadoop.util.HadoopUtils;
+
+/**
+   Looks up rows of an HBase table by key, for map-side enrichment without a reduce-side JOIN
+   against a full table load. Given a row key, or a bag of tuples whose first field is a row key,
+   returns a bag with one (key, column1, column2, ...) tuple per row found; columns are specified
+   and decoded exactly as for StaticFamilyStorage. Missing rows are left out, so FLATTEN gives
+   inner-join semantics.
+   <pre>{@code
+   DEFINE Lookup com.infochimps.hadoop.pig.hbase.HBaseLookup('places', 'info:name info:_type', '-cacheSize 50000');
+   enriched = FOREACH points GENERATE *, FLATTEN(Lookup(place_id));
+   }</pre>
+   A single key is not batched: each call whose key is not in the cache costs one Get. Only
+   the keys of a bag passed in one call, such as a bag field the records already carry, are
+   fetched together, with multi-gets of at most -batchSize rows. Recently seen keys, including
+   ones that turned out to be missing, are served from an LRU cache of -cacheSize entries.
+ */
+public class HBaseLookup extends EvalFunc<DataBag> {
+
+    private static final Log LOG = LogFactory.getLog(HBaseLookup.class);
+
+    private static final String LOCAL_SCHEME = "file://";
+
+    private final TupleFactory tupleFactory_ = TupleFactory.getInstance();
+    private final BagFactory bagFactory_ = BagFactory.getInstance();
+
+    private final static Options validOptions_ = new Options();
+    private final static CommandLineParser parser_ = new GnuParser();
+
+    private final String tableName_;
+    private final List<ColumnInfo> columnInfo_ = new ArrayList<ColumnInfo>();
+    private final ResultDecoder decoder_;
+    private final int batchSize_;
+    private final int cacheSize_;
+    private final String hbaseConfig_;
+
+    private HTable table_;
+    private Map<ImmutableBytesWritable, Tuple> cache_;
+    private long hits_ = 0;
+    private long lookups_ = 0;
+
+    private static void populateValidOptions() {
+        validOptions_.addOption("cacheSize", true, "Number of recently looked up rows to keep");
+        validOptions_.addOption("batchSize", true, "Maximum number of rows fetched with one multi-get");
+        validOptions_.addOption("config", true, "Full path to local hbase-site.xml");
+    }
+
+    public HBaseLookup(String tableName, String columnList) throws ParseException {
+        this(tableName, columnList, "");
+    }
+
+    public HBaseLookup(String tableName, String columnList, String optString) throws ParseException {
+        populateValidOptions();
+        CommandLine configuredOptions;
+        try {
+            configuredOptions = parser_.parse(validOptions_, optString.split(" "));
+        } catch (ParseException e) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp( "[-cacheSize] [-batchSize] [-config]", validOptions_ );
+            throw e;
+        }
+        tableName_ = tableName;
+        for (String colName : columnList.split(" ")) {
+            columnInfo_.add(new ColumnInfo(colName));
+        }
+        decoder_ = new ResultDecoder(columnInfo_);
+        cacheSize_ = Integer.valueOf(configuredOptions.getOptionValue("cacheSize", "10000"));
+        batchSize_ = Integer.valueOf(configuredOptions.getOptionValue("batchSize", "1000"));
+        hbaseConfig_ = configuredOptions.getOptionValue("config", "/etc/hbase/conf/hbase-site.xml");
+    }
+
+    /**
+       Connects to the table with the task's configuration, picking up the hbase-site.xml that
+       StaticFamilyStorage ships through the distributed cache when there is one.
+     */
+    private void initialize() throws IOException {
+        Configuration jobConf = UDFContext.getUDFContext().getJobConf();
+        Configuration conf = (jobConf == null) ? HBaseConfiguration.create() :
+            HBaseConfiguration.addHbaseResources(new Configuration(jobConf));
+        String taskConfig = HadoopUtils.fetchFromCache((new File(hbaseConfig_)).getName(), conf);
+        if (taskConfig == null) taskConfig = hbaseConfig_;
+        conf.addResource(new Path(LOCAL_SCHEME+taskConfig));
+        table_ = new HTable(conf, tableName_);
+
+        cache_ = new LinkedHashMap<ImmutableBytesWritable, Tuple>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<ImmutableBytesWritable, Tuple> eldest) {
+                return size() > cacheSize_;
+            }
+        };
+    }
+
+    public DataBag exec(Tuple input) throws IOException {
+        if (input == null || input.size() < 1 || input.isNull(0))
+            return null;
+        if (table_ == null) initialize();
+
+        List<ImmutableBytesWritable> keys = new ArrayList<ImmutableBytesWritable>();
+        Object keyField = input.get(0);
+        if (keyField instanceof DataBag) {
+            for (Tuple t : (DataBag) keyField) {
+                if (t.size() > 0 && !t.isNull(0)) keys.add(new ImmutableBytesWritable(toBytes(t.get(0))));
+            }
+        } else {
+            keys.add(new ImmutableBytesWritable(toBytes(keyField)));
+        }
+
+        Map<ImmutableBytesWritable, Tuple> found = new LinkedHashMap<ImmutableBytesWritable, Tuple>();
+        List<Get> gets = new ArrayList<Get>(Math.min(keys.size(), batchSize_));
+        for (ImmutableBytesWritable key : keys) {
+            lookups_++;
+            if (cache_.containsKey(key)) {
+                hits_++;
+                found.put(key, cache_.get(key));
+            } else if (!found.containsKey(key)) {
+                found.put(key, null);
+                gets.add(toGet(key.get()));
+                if (gets.size() >= batchSize_) fetch(gets, found);
+            }
+        }
+        fetch(gets, found);
+
+        DataBag output = bagFactory_.newDefaultBag();
+        for (ImmutableBytesWritable key : keys) {
+            Tuple row = found.get(key);
+            if (row != null) output.add(row);
+        }
+        if (LOG.isDebugEnabled() && lookups_ % 100000 == 0) {
+            LOG.debug("HBaseLookup cache hit rate " + hits_ + "/" + lookups_);
+        }
+        return output;
+    }
+
+    /**
+       Issues one multi-get for the pending gets and records every answer, found or not, in
+       both the result map and the cache.
+     */
+    private void fetch(List<Get> gets, Map<ImmutableBytesWritable, Tuple> found) throws IOException {
+        if (gets.isEmpty()) return;
+        Result[] results = table_.get(gets);
+        for (int i = 0; i < results.length; i++) {
+            ImmutableBytesWritable key = new ImmutableBytesWritable(gets.get(i).getRow());
+            Tuple row = null;
+            if (results[i] != null && !results[i].isEmpty()) {
+                row = tupleFactory_.newTuple(columnInfo_.size() + 1);
+                row.set(0, new DataByteArray(key.get()));
+                decoder_.decode(results[i], row, 1);
+            }
+            found.put(key, row);
+            cache_.put(key, row);
+        }
+        gets.clear();
+    }
+
+    private Get toGet(byte[] row) {
+        Get get = new Get(row);
+        // A family requested as a whole must not be narrowed by a column in the same family
+        Set<ImmutableBytesWritable> wholeFamilies = new HashSet<ImmutableBytesWritable>();
+        for (ColumnInfo columnInfo : columnInfo_) {
+            if (columnInfo.isColumnMap()) {
+                get.addFamily(columnInfo.getColumnFamily());
+                wholeFamilies.add(new ImmutableBytesWritable(columnInfo.getColumnFamily()));
+            }
+        }
+        for (ColumnInfo columnInfo : columnInfo_) {
+            if (!columnInfo.isColumnMap() &&
+                !wholeFamilies.contains(new ImmutableBytesWritable(columnInfo.getColumnFamily()))) {
+                get.addColumn(columnInfo.getColumnFamily(), columnInfo.getColumnName());
+            }
+        }
+        return get;
+    }
+
+    private static byte[] toBytes(Object key) {
+        if (key instanceof DataByteArray) return ((DataByteArray) key).get();
+        return Bytes.toBytes(key.toString());
+    }
+}
@@ -3,46 +3,101 @@ package com.infochimps.hadoop.pig.hbase;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
-import org.apache.hadoop.hbase.filter.BinaryComparator;
-import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
-import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.hfile.HFile;
 import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
 import org.apache.hadoop.hbase.mapreduce.TableRecordReader;
 import org.apache.hadoop.hbase.mapreduce.TableSplit;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.FSUtils;
 import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
 
 public class HBaseTableInputFormat extends TableInputFormat {
     private static final Log LOG = LogFactory.getLog(HBaseTableInputFormat.class);
 
+    private static final List<Result> END_OF_SCAN = Collections.emptyList();
+    private static final long PREFETCH_SHUTDOWN_MILLIS = 10000;
+    private static final int SAMPLE_BURST_ROWS = 100;
+    private static final int SAMPLE_KEY_BYTES = 8;
+    private static final double BERNOULLI_SAMPLE_FRACTION = 0.5;
+    private static final int ADAPTIVE_START_CACHING = 10;
+    private static final int ADAPTIVE_MAX_CACHING = 100000;
+    private static final int ADAPTIVE_MAX_GROWTH = 16;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
     protected final byte[] gt_;
     protected final byte[] gte_;
     protected final byte[] lt_;
     protected final byte[] lte_;
     protected final int maxTableSplits_;
+    protected final long limit_;
+    protected final long targetSplitBytes_;
+    protected final int prefetchDepth_;
+    protected final int saltBuckets_;
+    protected final boolean saltOrdered_;
+    protected final boolean orderedSplits_;
+    protected final double sampleFraction_;
+    protected final List<KeyRange> keyRanges_;
+    protected final String rangeFile_;
+    protected final long cachingBytes_;
+    protected final long cachingMillis_;
     
     public HBaseTableInputFormat() {
-        this(-1, 100, null, null, null, null);
+        this(new HBaseTableIFBuilder().withLimit(-1).withMaxSplits(100));
     }
 
-    protected HBaseTableInputFormat(long limit, int maxTableSplits, byte[] gt, byte[] gte, byte[] lt, byte[] lte) {
+    protected HBaseTableInputFormat(HBaseTableIFBuilder builder) {
         super();
-        setTableRecordReader(new HBaseTableRecordReader(limit));
-        maxTableSplits_ = maxTableSplits;
-        gt_ = gt;
-        gte_ = gte;
-        lt_ = lt;
-        lte_ = lte;
+        limit_ = builder.limit_;
+        maxTableSplits_ = builder.maxTableSplits_;
+        targetSplitBytes_ = builder.targetSplitBytes_;
+        prefetchDepth_ = builder.prefetchDepth_;
+        saltBuckets_ = builder.saltBuckets_;
+        saltOrdered_ = builder.saltOrdered_;
+        orderedSplits_ = builder.orderedSplits_;
+        sampleFraction_ = builder.sampleFraction_;
+        keyRanges_ = builder.keyRanges_;
+        rangeFile_ = builder.rangeFile_;
+        cachingBytes_ = builder.cachingBytes_;
+        cachingMillis_ = builder.cachingMillis_;
+        gt_ = builder.gt_;
+        gte_ = builder.gte_;
+        lt_ = builder.lt_;
+        lte_ = builder.lte_;
+        setTableRecordReader(new HBaseTableRecordReader(limit_));
     }
 
     public static class HBaseTableIFBuilder {
@@ -52,6 +107,16 @@ public class HBaseTableInputFormat extends TableInputFormat {
         protected byte[] lte_;
         protected long limit_;
         protected int maxTableSplits_;
+        protected long targetSplitBytes_ = -1;
+        protected int prefetchDepth_ = 0;
+        protected int saltBuckets_ = 0;
+        protected boolean saltOrdered_ = false;
+        protected boolean orderedSplits_ = false;
+        protected double sampleFraction_ = -1;
+        protected List<KeyRange> keyRanges_;
+        protected String rangeFile_;
+        protected long cachingBytes_ = -1;
+        protected long cachingMillis_ = -1;
         protected Configuration conf_;
 
         public HBaseTableIFBuilder withGt(byte[] gt) { gt_ = gt; return this; }
@@ -60,10 +125,18 @@ public class HBaseTableInputFormat extends TableInputFormat {
         public HBaseTableIFBuilder withLte(byte[] lte) { lte_ = lte; return this; }
         public HBaseTableIFBuilder withLimit(long limit) { limit_ = limit; return this; }
         public HBaseTableIFBuilder withMaxSplits(int maxTableSplits) {maxTableSplits_ = maxTableSplits; return this; }
+        public HBaseTableIFBuilder withTargetSplitBytes(long targetSplitBytes) { targetSplitBytes_ = targetSplitBytes; return this; }
+        public HBaseTableIFBuilder withPrefetch(int prefetchDepth) { prefetchDepth_ = prefetchDepth; return this; }
+        public HBaseTableIFBuilder withSalt(int saltBuckets, boolean ordered) { saltBuckets_ = saltBuckets; saltOrdered_ = ordered; return this; }
+        public HBaseTableIFBuilder withOrderedSplits(boolean orderedSplits) { orderedSplits_ = orderedSplits; return this; }
+        public HBaseTableIFBuilder withSample(double sampleFraction) { sampleFraction_ = sampleFraction; return this; }
+        public HBaseTableIFBuilder withKeyRanges(List<KeyRange> keyRanges) { keyRanges_ = keyRanges; return this; }
+        public HBaseTableIFBuilder withRangeFile(String rangeFile) { rangeFile_ = rangeFile; return this; }
+        public HBaseTableIFBuilder withAdaptiveCaching(long cachingBytes, long cachingMillis) { cachingBytes_ = cachingBytes; cachingMillis_ = cachingMillis; return this; }
         public HBaseTableIFBuilder withConf(Configuration conf) { conf_ = conf; return this; }
 
         public HBaseTableInputFormat build() {
-            HBaseTableInputFormat inputFormat = new HBaseTableInputFormat(limit_, maxTableSplits_, gt_, gte_, lt_, lte_);
+            HBaseTableInputFormat inputFormat = new HBaseTableInputFormat(this);
             if (conf_ != null) inputFormat.setConf(conf_);
             return inputFormat;
         }
@@ -73,73 +146,680 @@ public class HBaseTableInputFormat extends TableInputFormat {
     @Override
     public List<InputSplit> getSplits(org.apache.hadoop.mapreduce.JobContext context)
     throws IOException {
-        List<InputSplit> splits = super.getSplits(context);
-        ListIterator<InputSplit> splitIter = splits.listIterator();
-        while (splitIter.hasNext()) {
-            TableSplit split = (TableSplit) splitIter.next();
-            byte[] startKey = split.getStartRow();
-            byte[] endKey = split.getEndRow();
-            // Skip if the region doesn't satisfy configured options.
-            if ((skipRegion(CompareOp.LESS, startKey, lt_)) ||
-                    (skipRegion(CompareOp.GREATER, endKey, gt_)) ||
-                    (skipRegion(CompareOp.GREATER, endKey, gte_)) ||
-                    (skipRegion(CompareOp.LESS_OR_EQUAL, startKey, lte_)) )  {
-                splitIter.remove();
+        List<InputSplit> regionSplits = super.getSplits(context);
+
+        //
+        // Clip every region to the configured key range so each split's scan starts and
+        // stops exactly at the requested bounds. Regions outside the range are dropped. A
+        // salted table holds the range once per bucket. With a list of key ranges, every range
+        // that overlaps a region gets its own split of that region.
+        //
+        KeyRange range = KeyRange.fromBounds(gt_, gte_, lt_, lte_);
+        List<KeyRange> logical = logicalRanges(range);
+        if (saltBuckets_ > 0 && saltOrdered_) {
+            List<InputSplit> splits = new ArrayList<InputSplit>();
+            for (KeyRange keyRange : logical) {
+                splits.addAll(saltedSplits(regionSplits, keyRange));
             }
+            return splits;
+        }
+        List<KeyRange> ranges = logical;
+        if (saltBuckets_ > 0) {
+            ranges = new ArrayList<KeyRange>(logical.size() * saltBuckets_);
+            for (KeyRange keyRange : logical) {
+                ranges.addAll(Salt.bucketRanges(keyRange, saltBuckets_));
+            }
+        }
+        List<InputSplit> splits = new ArrayList<InputSplit>(regionSplits.size());
+        for (InputSplit regionSplit : regionSplits) {
+            TableSplit split = (TableSplit) regionSplit;
+            for (KeyRange physical : ranges) {
+                KeyRange clipped = physical.intersect(split.getStartRow(), split.getEndRow());
+                if (clipped == null) continue;
+                splits.add(new TableSplit(split.getTableName(), clipped.getStart(), clipped.getStop(), split.getRegionLocation()));
+            }
+        }
+        LOG.info("Scanning " + splits.size() + " splits of " + regionSplits.size() + " regions for " +
+                 (logical.size() == 1 ? "key range " + logical.get(0) : logical.size() + " key ranges") +
+                 (saltBuckets_ > 0 ? " in each of " + saltBuckets_ + " salt buckets" : ""));
+
+        if (targetSplitBytes_ <= 0 && splits.size() <= maxTableSplits_) {
+            if (logical.size() > 1) splits = groupByRegion(splits, regionSplits, identitySet(splits));
+            LOG.info("Returning " + splits.size() + " input splits");
+            return splits;
         }
+        Map<InputSplit, Long> splitSizes = splitSizes(splits, regionSizes());
 
         //
-        // Combine input splits to keep the number of connections sane
+        // Break regions larger than the target split size into several splits so a single
+        // huge region doesn't become the straggling map task. Only the splits left whole
+        // may later be grouped by region, or the pieces would be put back together.
         //
-        // FIXME: The algorithm for this is brainless.
+        Set<InputSplit> whole = identitySet(splits);
+        if (targetSplitBytes_ > 0) {
+            splits = subdivideTableSplits(splits, splitSizes);
+        }
+
         //
-        List<InputSplit> combinedSplits = splits;
-        while(combinedSplits.size() > maxTableSplits_) {
-            combinedSplits = mergeListOfTableSplits(combinedSplits);
+        // Combine input splits to keep the number of connections sane
+        //
+        if (splits.size() > maxTableSplits_) {
+            splits = orderedSplits_ ? combineAdjacentSplits(splits, splitSizes) : combineTableSplits(splits, splitSizes);
+        } else if (logical.size() > 1) {
+            splits = groupByRegion(splits, regionSplits, whole);
         }
-        return combinedSplits;
+        LOG.info("Returning " + splits.size() + " input splits");
+        return splits;
     }
 
-    private boolean skipRegion(CompareOp op, byte[] key, byte[] option ) {
+    private static Set<InputSplit> identitySet(List<InputSplit> splits) {
+        Set<InputSplit> set = Collections.newSetFromMap(new IdentityHashMap<InputSplit, Boolean>());
+        set.addAll(splits);
+        return set;
+    }
 
-        if (key.length == 0 || option == null) 
-            return false;
+    /**
+       The key ranges to load: the -gt/-lt style bounds, or the list of key ranges given
+       inline and in the range file, clipped to those bounds and merged where they overlap.
+     */
+    private List<KeyRange> logicalRanges(KeyRange bounds) throws IOException {
+        if (keyRanges_ == null && rangeFile_ == null) {
+            return Collections.singletonList(bounds);
+        }
+        List<KeyRange> requested = new ArrayList<KeyRange>();
+        if (keyRanges_ != null) requested.addAll(keyRanges_);
+        if (rangeFile_ != null) requested.addAll(KeyRange.readRanges(new Path(rangeFile_), getConf()));
 
-        BinaryComparator comp = new BinaryComparator(option);
-        RowFilter rowFilter = new RowFilter(op, comp);
-        return rowFilter.filterRowKey(key, 0, key.length);
+        List<KeyRange> ranges = new ArrayList<KeyRange>(requested.size());
+        for (KeyRange keyRange : KeyRange.coalesce(requested)) {
+            KeyRange clipped = bounds.intersect(keyRange.getStart(), keyRange.getStop());
+            if (clipped != null) ranges.add(clipped);
+        }
+        LOG.info("Loading " + ranges.size() + " key ranges, merged from " + requested.size() + " requested");
+        return ranges;
     }
 
     /**
-       Combines all splits in the list resulting in half the splits given.
+       Gathers the groupable splits that fall in the same region into a single
+       CombinedTableSplit, so that the ranges of a region are read one after the other by one
+       task over one connection rather than each paying for a map task of its own. Other
+       splits, such as the pieces of a subdivided region, are passed through on their own.
      */
-    private List<InputSplit> mergeListOfTableSplits(List<InputSplit> splits) {
-        if (splits.size() < 2) return splits;
-        List<InputSplit> results = new ArrayList<InputSplit>((splits.size()+1)/2);
-        boolean isOdd = !(splits.size() % 2 == 0);
-        for(int i = 0; i < splits.size()-1; i += 2) {
-            results.add(mergeTableSplits((TableSplit)splits.get(i), (TableSplit)splits.get(i+1)));
+    private List<InputSplit> groupByRegion(List<InputSplit> splits, List<InputSplit> regionSplits, Set<InputSplit> groupable) {
+        TreeMap<byte[], List<TableSplit>> byRegion = new TreeMap<byte[], List<TableSplit>>(Bytes.BYTES_COMPARATOR);
+        for (InputSplit regionSplit : regionSplits) {
+            byRegion.put(((TableSplit) regionSplit).getStartRow(), new ArrayList<TableSplit>());
         }
-        if (isOdd) results.add(splits.get(splits.size()-1)); 
+        List<InputSplit> results = new ArrayList<InputSplit>(byRegion.size());
+        for (InputSplit split : splits) {
+            if (groupable.contains(split)) {
+                byRegion.floorEntry(((TableSplit) split).getStartRow()).getValue().add((TableSplit) split);
+            } else {
+                results.add(split);
+            }
+        }
+        for (List<TableSplit> regionRanges : byRegion.values()) {
+            if (regionRanges.size() == 1) {
+                results.add(regionRanges.get(0));
+            } else if (regionRanges.size() > 1) {
+                results.add(new CombinedTableSplit(regionRanges, regionRanges.get(0).getRegionLocation(), 0, true));
+            }
+        }
+        LOG.info("Grouped " + splits.size() + " splits into " + results.size() + " by region");
         return results;
     }
-    
+
+    @Override
+    public RecordReader<ImmutableBytesWritable, Result> createRecordReader(InputSplit split, TaskAttemptContext context)
+    throws IOException {
+        if (split instanceof CombinedTableSplit) {
+            return new CombinedTableRecordReader((CombinedTableSplit) split);
+        }
+        if (split instanceof SaltedSplit) {
+            return new SaltedRecordReader((SaltedSplit) split);
+        }
+        return super.createRecordReader(split, context);
+    }
+
+    /**
+       Cuts a logical key range of a salted table into contiguous SaltedSplits, each of which
+       reads its slice from every bucket and merges the rows back into key order. Region
+       boundaries, stripped of their bucket, are where the data of some bucket changes
+       hands, so they make the cut points; at most maxTableSplits of them are kept.
+     */
+    private List<InputSplit> saltedSplits(List<InputSplit> regionSplits, KeyRange range) {
+        TreeSet<byte[]> cuts = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+        TreeMap<byte[], String> locations = new TreeMap<byte[], String>(Bytes.BYTES_COMPARATOR);
+        byte[] tableName = HConstants.EMPTY_BYTE_ARRAY;
+        for (InputSplit regionSplit : regionSplits) {
+            TableSplit split = (TableSplit) regionSplit;
+            tableName = split.getTableName();
+            locations.put(split.getStartRow(), split.getRegionLocation());
+            byte[] start = split.getStartRow();
+            if (start.length < 2) continue;
+            byte[] cut = Salt.unsalt(start);
+            if (range.contains(cut) && Bytes.compareTo(cut, range.getStart()) > 0) cuts.add(cut);
+        }
+
+        List<byte[]> bounds = new ArrayList<byte[]>();
+        bounds.add(range.getStart());
+        int every = (cuts.size() + Math.max(maxTableSplits_, 1) - 1) / Math.max(maxTableSplits_, 1);
+        int i = 0;
+        for (byte[] cut : cuts) {
+            if (++i % Math.max(every, 1) == 0) bounds.add(cut);
+        }
+        bounds.add(range.getStop());
+
+        List<InputSplit> splits = new ArrayList<InputSplit>(bounds.size() - 1);
+        for (int j = 0; j < bounds.size() - 1; j++) {
+            byte[] firstRow = Salt.bucketRange(0, new KeyRange(bounds.get(j), bounds.get(j+1))).getStart();
+            Map.Entry<byte[], String> region = locations.floorEntry(firstRow);
+            String location = (region == null) ? "" : region.getValue();
+            splits.add(new SaltedSplit(tableName, bounds.get(j), bounds.get(j+1), saltBuckets_, location));
+        }
+        LOG.info("Merging " + saltBuckets_ + " salt buckets back into key order with " + splits.size() + " splits for key range " + range);
+        return splits;
+    }
+
+    /**
+       Estimates the size of every region of the table as the total size of the files under
+       its directory in hbase.rootdir, keyed by region start key. Returns an empty map if the
+       region directories can't be read, in which case every split counts as equally large.
+     */
+    protected TreeMap<byte[], Long> regionSizes() {
+        TreeMap<byte[], Long> sizes = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+        try {
+            HTable table = getHTable();
+            Path tableDir = new Path(FSUtils.getRootDir(getConf()), Bytes.toString(table.getTableName()));
+            FileSystem fs = tableDir.getFileSystem(getConf());
+            for (HRegionInfo region : table.getRegionsInfo().keySet()) {
+                Path regionDir = new Path(tableDir, region.getEncodedName());
+                long size = fs.exists(regionDir) ? fs.getContentSummary(regionDir).getLength() : 0;
+                sizes.put(region.getStartKey(), size);
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to determine region sizes, combining splits by count only", e);
+            sizes.clear();
+        }
+        return sizes;
+    }
 
     /**
-       Simply merges two table splits, in the right order, resulting in one larger split.
+       Estimates the size of each split as the size of the region it falls in, scaled by the
+       share of the region's key space the split covers, since key bounds and key ranges clip
+       splits to a fraction of their region. Splits that can't be matched to a region count as
+       one byte, so that combining falls back to balancing split counts.
      */
-    private TableSplit mergeTableSplits(TableSplit a, TableSplit b) {
-        int comparison = a.compareTo(b);
-        if ( comparison > 0) {
-            return new TableSplit(a.getTableName(), b.getStartRow(), a.getEndRow(), a.getRegionLocation());
-        } else if (comparison < 0) {
-            return new TableSplit(a.getTableName(), a.getStartRow(), b.getEndRow(), a.getRegionLocation());
-        } else {
-            return a;
+    private Map<InputSplit, Long> splitSizes(List<InputSplit> splits, TreeMap<byte[], Long> regionSizes) {
+        Map<InputSplit, Long> sizes = new IdentityHashMap<InputSplit, Long>();
+        for (InputSplit inputSplit : splits) {
+            TableSplit split = (TableSplit) inputSplit;
+            Map.Entry<byte[], Long> region = regionSizes.floorEntry(split.getStartRow());
+            if (region == null) {
+                sizes.put(split, 1L);
+                continue;
+            }
+            byte[] regionStop = regionSizes.higherKey(region.getKey());
+            double fraction = keyFraction(split.getStartRow(), split.getEndRow(), region.getKey(),
+                                          (regionStop == null) ? HConstants.EMPTY_END_ROW : regionStop);
+            sizes.put(split, Math.max(Math.round(region.getValue() * fraction), 1L));
         }
+        return sizes;
+    }
+
+    /**
+       The share of the key space of [outerStart, outerStop) taken up by [start, stop), by
+       the same interpolation as interpolateKeys. Keys are padded with zeros to a common
+       length, and an empty stop key counts as all 0xFF bytes.
+     */
+    static double keyFraction(byte[] start, byte[] stop, byte[] outerStart, byte[] outerStop) {
+        int length = Math.max(Math.max(start.length, stop.length), Math.max(outerStart.length, outerStop.length));
+        if (length == 0) return 1;
+        BigInteger outer = keyToBigInteger(padKey(outerStop, length, true)).subtract(keyToBigInteger(padKey(outerStart, length, false)));
+        if (outer.signum() <= 0) return 1;
+        BigInteger inner = keyToBigInteger(padKey(stop, length, true)).subtract(keyToBigInteger(padKey(start, length, false)));
+        double fraction = new BigDecimal(inner).divide(new BigDecimal(outer), 6, BigDecimal.ROUND_HALF_UP).doubleValue();
+        return Math.min(Math.max(fraction, 0), 1);
     }
 
-    protected class HBaseTableRecordReader extends TableRecordReader {
+    private static byte[] padKey(byte[] key, int length, boolean isStop) {
+        if (key.length == 0 && isStop) {
+            byte[] upper = new byte[length];
+            Arrays.fill(upper, (byte) 0xFF);
+            return upper;
+        }
+        return (key.length < length) ? Bytes.padTail(key, length - key.length) : key;
+    }
+
+    /**
+       Splits every table split whose region is larger than targetSplitBytes into
+       ceil(size/targetSplitBytes) pieces covering equal slices of its key range. Each piece
+       inherits an equal share of the region's size. A split open at both ends, such as the
+       only region of a table, has no key range to slice, so the rows between the first and
+       last ones in its store files are sliced instead, the outer pieces staying open.
+     */
+    private List<InputSplit> subdivideTableSplits(List<InputSplit> splits, Map<InputSplit, Long> splitSizes) {
+        List<InputSplit> results = new ArrayList<InputSplit>(splits.size());
+        for (InputSplit inputSplit : splits) {
+            TableSplit split = (TableSplit) inputSplit;
+            long size = splitSizes.get(split);
+            int pieces = (int) Math.min((size + targetSplitBytes_ - 1) / targetSplitBytes_, Integer.MAX_VALUE);
+            byte[][] keys = (pieces > 1) ? interpolateKeys(split.getStartRow(), split.getEndRow(), pieces) : null;
+            if (keys == null && pieces > 1 && split.getStartRow().length == 0 && split.getEndRow().length == 0) {
+                byte[][] rows = storeFileRows(split.getStartRow());
+                keys = (rows == null) ? null : interpolateKeys(rows[0], KeyRange.successor(rows[1]), pieces);
+                if (keys != null) {
+                    keys[0] = split.getStartRow();
+                    keys[keys.length - 1] = split.getEndRow();
+                }
+            }
+            if (keys == null) {
+                results.add(split);
+                continue;
+            }
+            LOG.info("Subdividing " + split + " (" + size + " bytes) into " + (keys.length - 1) + " splits");
+            for (int i = 0; i < keys.length - 1; i++) {
+                TableSplit piece = new TableSplit(split.getTableName(), keys[i], keys[i+1], split.getRegionLocation());
+                splitSizes.put(piece, Math.max(size / (keys.length - 1), 1L));
+                results.add(piece);
+            }
+        }
+        return results;
+    }
+
+    /**
+       The first and last rows in the store files of the region starting at the given key, or
+       null if it has none or they can't be read. Rows still in the memstore are not seen.
+     */
+    private byte[][] storeFileRows(byte[] regionStart) {
+        try {
+            HTable table = getHTable();
+            Path tableDir = new Path(FSUtils.getRootDir(getConf()), Bytes.toString(table.getTableName()));
+            FileSystem fs = tableDir.getFileSystem(getConf());
+            for (HRegionInfo region : table.getRegionsInfo().keySet()) {
+                if (!Bytes.equals(region.getStartKey(), regionStart)) continue;
+                FileStatus[] familyDirs = fs.listStatus(new Path(tableDir, region.getEncodedName()));
+                if (familyDirs == null) return null;
+                byte[] firstRow = null;
+                byte[] lastRow = null;
+                for (FileStatus familyDir : familyDirs) {
+                    if (!familyDir.isDir() || familyDir.getPath().getName().startsWith(".")) continue;
+                    for (FileStatus file : fs.listStatus(familyDir.getPath())) {
+                        if (file.isDir()) continue;
+                        HFile.Reader reader = new HFile.Reader(fs, HFileInputFormat.resolveReference(file.getPath()), null, false);
+                        try {
+                            reader.loadFileInfo();
+                            if (reader.getEntries() == 0) continue;
+                            byte[] first = KeyValue.createKeyValueFromKey(reader.getFirstKey()).getRow();
+                            byte[] last = KeyValue.createKeyValueFromKey(reader.getLastKey()).getRow();
+                            if (firstRow == null || Bytes.compareTo(first, firstRow) < 0) firstRow = first;
+                            if (lastRow == null || Bytes.compareTo(last, lastRow) > 0) lastRow = last;
+                        } finally {
+                            reader.close();
+                        }
+                    }
+                }
+                return (firstRow == null) ? null : new byte[][] {firstRow, lastRow};
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to read the store files of the region at " + Bytes.toStringBinary(regionStart), e);
+        }
+        return null;
+    }
+
+    /**
+       Returns pieces+1 increasing keys, the first and last being start and stop, that cut
+       [start, stop) into equal slices of key space. An empty stop key is treated as a key of
+       0xFF bytes as long as the start key. Returns null if the range can't be interpolated,
+       which is the case when both ends are unbounded.
+     */
+    static byte[][] interpolateKeys(byte[] start, byte[] stop, int pieces) {
+        byte[] upper = stop;
+        if (upper.length == 0) {
+            if (start.length == 0) return null;
+            upper = new byte[start.length];
+            Arrays.fill(upper, (byte) 0xFF);
+        }
+        byte[][] padded = padToSameLength(start, upper);
+        BigInteger bigStart = keyToBigInteger(padded[0]);
+        BigInteger bigRange = keyToBigInteger(padded[1]).subtract(bigStart);
+
+        List<byte[]> keys = new ArrayList<byte[]>(pieces + 1);
+        keys.add(start);
+        for (int i = 1; i < pieces; i++) {
+            BigInteger offset = bigRange.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(pieces));
+            byte[] key = bigIntegerToKey(bigStart.add(offset), padded[0].length);
+            if (Bytes.compareTo(key, keys.get(keys.size() - 1)) > 0) keys.add(key);
+        }
+        if (keys.size() < 2) return null;
+        keys.add(stop);
+        return keys.toArray(new byte[keys.size()][]);
+    }
+
+    /**
+       Pads the shorter of two keys with trailing zeros so that both have the same length.
+     */
+    static byte[][] padToSameLength(byte[] a, byte[] b) {
+        if (a.length < b.length) {
+            return new byte[][] {Bytes.padTail(a, b.length - a.length), b};
+        } else if (b.length < a.length) {
+            return new byte[][] {a, Bytes.padTail(b, a.length - b.length)};
+        }
+        return new byte[][] {a, b};
+    }
+
+    /**
+       Treats a key as an unsigned big-endian number. A {1, 0} header is prepended so that the
+       result is positive and leading zero bytes of the key stay significant.
+     */
+    static BigInteger keyToBigInteger(byte[] key) {
+        byte [] prependHeader = {1, 0};
+        return new BigInteger(Bytes.add(prependHeader, key));
+    }
+
+    /**
+       The inverse of keyToBigInteger for a key of the given length.
+     */
+    static byte[] bigIntegerToKey(BigInteger value, int length) {
+        return Bytes.tail(value.toByteArray(), length);
+    }
+
+
+    /**
+       Packs table splits into at most maxTableSplits bins of roughly equal size. Splits are
+       placed largest first, each into the least loaded bin on its own region server, opening
+       a new bin for that server while the bin is full and bins remain. Only once every bin
+       has been handed out does a split land on another server's bin. The regions of a bin
+       are not adjacent, so its splits can't be ordered by key; see combineAdjacentSplits.
+     */
+    private List<InputSplit> combineTableSplits(List<InputSplit> splits, final Map<InputSplit, Long> splitSizes) {
+        int maxSplits = Math.max(maxTableSplits_, 1);
+        long totalSize = 0;
+        for (InputSplit split : splits) {
+            totalSize += splitSizes.get(split);
+        }
+        long targetSize = (totalSize + maxSplits - 1) / maxSplits;
+
+        List<InputSplit> bySize = new ArrayList<InputSplit>(splits);
+        Collections.sort(bySize, new Comparator<InputSplit>() {
+                public int compare(InputSplit a, InputSplit b) {
+                    long sizeA = splitSizes.get(a);
+                    long sizeB = splitSizes.get(b);
+                    return (sizeA > sizeB) ? -1 : (sizeA < sizeB ? 1 : 0);
+                }
+            });
+
+        List<SplitBin> bins = new ArrayList<SplitBin>(maxSplits);
+        Map<String, List<SplitBin>> binsByHost = new HashMap<String, List<SplitBin>>();
+        for (InputSplit inputSplit : bySize) {
+            TableSplit split = (TableSplit) inputSplit;
+            long size = splitSizes.get(split);
+            String host = split.getRegionLocation();
+
+            List<SplitBin> hostBins = binsByHost.get(host);
+            if (hostBins == null) {
+                hostBins = new ArrayList<SplitBin>();
+                binsByHost.put(host, hostBins);
+            }
+            SplitBin bin = leastLoaded(hostBins);
+            if ((bin == null || bin.size_ + size > targetSize) && bins.size() < maxSplits) {
+                bin = new SplitBin(host);
+                hostBins.add(bin);
+                bins.add(bin);
+            } else if (bin == null) {
+                bin = leastLoaded(bins);
+            }
+            bin.add(split, size);
+        }
+
+        List<InputSplit> results = new ArrayList<InputSplit>(bins.size());
+        for (SplitBin bin : bins) {
+            results.add(new CombinedTableSplit(bin.splits_, bin.largestHost(), bin.size_, false));
+        }
+        LOG.info("Combined " + splits.size() + " splits into " + results.size() + " across " +
+                 binsByHost.size() + " region servers, targeting " + targetSize + " bytes each");
+        return results;
+    }
+
+    private static SplitBin leastLoaded(List<SplitBin> bins) {
+        SplitBin least = null;
+        for (SplitBin bin : bins) {
+            if (least == null || bin.size_ < least.size_) least = bin;
+        }
+        return least;
+    }
+
+    /**
+       Cuts table splits, in key order, into at most maxTableSplits runs of adjacent splits of
+       roughly equal size, for loads that need combined splits to cover disjoint, ordered key
+       ranges (-orderedSplits). A run is closed once the splits before the next one reach its
+       share of the total size, and is located on the region server holding most of its bytes.
+     */
+    private List<InputSplit> combineAdjacentSplits(List<InputSplit> splits, Map<InputSplit, Long> splitSizes) {
+        int maxSplits = Math.max(maxTableSplits_, 1);
+        long totalSize = 0;
+        for (InputSplit split : splits) {
+            totalSize += splitSizes.get(split);
+        }
+        long targetSize = (totalSize + maxSplits - 1) / maxSplits;
+
+        List<TableSplit> byKey = new ArrayList<TableSplit>(splits.size());
+        for (InputSplit split : splits) {
+            byKey.add((TableSplit) split);
+        }
+        Collections.sort(byKey);
+
+        List<SplitBin> bins = new ArrayList<SplitBin>(maxSplits);
+        Set<String> hosts = new HashSet<String>();
+        SplitBin bin = null;
+        long placed = 0;
+        for (TableSplit split : byKey) {
+            long size = splitSizes.get(split);
+            if (bin == null || (bins.size() < maxSplits && placed >= (double) totalSize * bins.size() / maxSplits)) {
+                bin = new SplitBin(split.getRegionLocation());
+                bins.add(bin);
+            }
+            bin.add(split, size);
+            placed += size;
+            hosts.add(split.getRegionLocation());
+        }
+
+        List<InputSplit> results = new ArrayList<InputSplit>(bins.size());
+        for (SplitBin combined : bins) {
+            results.add(new CombinedTableSplit(combined.splits_, combined.largestHost(), combined.size_, true));
+        }
+        LOG.info("Combined " + splits.size() + " splits into " + results.size() + " runs of adjacent regions across " +
+                 hosts.size() + " region servers, targeting " + targetSize + " bytes each");
+        return results;
+    }
+
+    private static class SplitBin {
+        final String host_;
+        final List<TableSplit> splits_ = new ArrayList<TableSplit>();
+        final Map<String, Long> hostSizes_ = new HashMap<String, Long>();
+        long size_ = 0;
+
+        SplitBin(String host) { host_ = host; }
+
+        void add(TableSplit split, long size) {
+            splits_.add(split);
+            size_ += size;
+            Long hostSize = hostSizes_.get(split.getRegionLocation());
+            hostSizes_.put(split.getRegionLocation(), (hostSize == null ? 0 : hostSize) + size);
+        }
+
+        /**
+           The region server holding the most bytes of the bin, which need not be the one
+           the bin was opened for.
+         */
+        String largestHost() {
+            String largest = host_;
+            long largestSize = -1;
+            for (Map.Entry<String, Long> host : hostSizes_.entrySet()) {
+                if (host.getValue() > largestSize) {
+                    largest = host.getKey();
+                    largestSize = host.getValue();
+                }
+            }
+            return largest;
+        }
+    }
+
+    /**
+       Reads the table splits of a CombinedTableSplit one after the other, each with its own
+       HBaseTableRecordReader.
+     */
+    protected class CombinedTableRecordReader extends RecordReader<ImmutableBytesWritable, Result> implements ScanStats.Source {
+
+        private final List<TableSplit> splits_;
+        private int current_ = -1;
+        private HBaseTableRecordReader reader_;
+        private TaskAttemptContext context_;
+
+        public CombinedTableRecordReader(CombinedTableSplit split) {
+            splits_ = split.getSplits();
+        }
+
+        /**
+           The stats of the table split being read.
+         */
+        public ScanStats getStats() {
+            return (reader_ == null) ? null : reader_.getStats();
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+            context_ = context;
+            nextReader();
+        }
+
+        private boolean nextReader() throws IOException, InterruptedException {
+            if (reader_ != null) reader_.close();
+            reader_ = null;
+            if (++current_ >= splits_.size()) return false;
+
+            TableSplit split = splits_.get(current_);
+            Scan scan = new Scan(getScan());
+            scan.setStartRow(split.getStartRow());
+            scan.setStopRow(split.getEndRow());
+            reader_ = new HBaseTableRecordReader(limit_);
+            reader_.setScan(scan);
+            reader_.setHTable(getHTable());
+            reader_.init();
+            reader_.initialize(split, context_);
+            return true;
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException, InterruptedException {
+            while (reader_ != null) {
+                if (reader_.nextKeyValue()) return true;
+                nextReader();
+            }
+            return false;
+        }
+
+        @Override
+        public ImmutableBytesWritable getCurrentKey() throws IOException, InterruptedException {
+            return reader_.getCurrentKey();
+        }
+
+        @Override
+        public Result getCurrentValue() throws IOException, InterruptedException {
+            return reader_.getCurrentValue();
+        }
+
+        @Override
+        public float getProgress() {
+            if (splits_.isEmpty()) return 1;
+            float done = Math.min(current_, splits_.size());
+            if (reader_ != null) done += reader_.getProgress();
+            return done / splits_.size();
+        }
+
+        @Override
+        public void close() {
+            if (reader_ != null) reader_.close();
+        }
+    }
+
+    /**
+       Reads one physical range per salt bucket and merges the rows into logical key order.
+       Each bucket keeps the row it is positioned on; the bucket with the smallest logical
+       key is handed out and advanced next.
+     */
+    protected class SaltedRecordReader extends RecordReader<ImmutableBytesWritable, Result> {
+
+        private final SaltedSplit split_;
+        private final List<HBaseTableRecordReader> readers_ = new ArrayList<HBaseTableRecordReader>();
+        private final PriorityQueue<HBaseTableRecordReader> heap_;
+        private HBaseTableRecordReader current_;
+
+        public SaltedRecordReader(SaltedSplit split) {
+            split_ = split;
+            heap_ = new PriorityQueue<HBaseTableRecordReader>(split.getBuckets(), new Comparator<HBaseTableRecordReader>() {
+                    public int compare(HBaseTableRecordReader a, HBaseTableRecordReader b) {
+                        try {
+                            return Salt.compareUnsalted(a.getCurrentKey().get(), b.getCurrentKey().get());
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+            for (int bucket = 0; bucket < split_.getBuckets(); bucket++) {
+                KeyRange physical = Salt.bucketRange(bucket, split_.getRange());
+                Scan scan = new Scan(getScan());
+                scan.setStartRow(physical.getStart());
+                scan.setStopRow(physical.getStop());
+                HBaseTableRecordReader reader = new HBaseTableRecordReader(limit_);
+                reader.setScan(scan);
+                reader.setHTable(getHTable());
+                reader.init();
+                readers_.add(reader);
+                if (reader.nextKeyValue()) heap_.add(reader);
+            }
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException, InterruptedException {
+            if (current_ != null && current_.nextKeyValue()) heap_.add(current_);
+            current_ = heap_.poll();
+            return current_ != null;
+        }
+
+        @Override
+        public ImmutableBytesWritable getCurrentKey() throws IOException, InterruptedException {
+            return current_.getCurrentKey();
+        }
+
+        @Override
+        public Result getCurrentValue() throws IOException, InterruptedException {
+            return current_.getCurrentValue();
+        }
+
+        @Override
+        public float getProgress() {
+            if (readers_.isEmpty()) return 1;
+            float done = 0;
+            for (HBaseTableRecordReader reader : readers_) {
+                done += reader.getProgress();
+            }
+            return done / readers_.size();
+        }
+
+        @Override
+        public void close() {
+            for (HBaseTableRecordReader reader : readers_) {
+                reader.close();
+            }
+        }
+    }
+
+    protected class HBaseTableRecordReader extends TableRecordReader implements ScanStats.Source {
 
         private long recordsSeen = 0;
         private final long limit_;
@@ -152,42 +832,100 @@ public class HBaseTableInputFormat extends TableInputFormat {
         private BigDecimal bigRange_;
         private transient float progressSoFar_ = 0;
 
+        private int batchSize_ = 1;
+        private byte[] burstStart_;
+        private int burstRows_ = 0;
+        private int sampleKeyLength_;
+        private BigInteger sampleEnd_;
+        private Random random_;
+        private HTable table_;
+        private final ScanStats stats_ = new ScanStats();
+        private long started_;
+        private ScanPrefetcher prefetcher_;
+        private List<Result> batch_;
+        private int batchIndex_;
+        private ImmutableBytesWritable key_;
+        private Result value_;
+        private Scan scan_;
+        private boolean adaptive_ = false;
+        private int caching_;
+        private long windowRows_ = 0;
+        private long windowBytes_ = 0;
+        private long windowNanos_ = 0;
+        private byte[] pendingRestart_;
+        private int cachedRows_ = 0;
+
         public HBaseTableRecordReader(long limit) {
             limit_ = limit;
         }
 
+        public ScanStats getStats() {
+            return stats_;
+        }
+
+        @Override
+        public void setHTable(HTable table) {
+            super.setHTable(table);
+            table_ = table;
+        }
+
         @Override
         public void setScan(Scan scan) {
             super.setScan(scan);
 
             startRow_ = scan.getStartRow();
             endRow_ = scan.getStopRow();
-            byte[] startPadded;
-            byte[] endPadded;
-            if (startRow_.length < endRow_.length) {
-                startPadded = Bytes.padTail(startRow_, endRow_.length - startRow_.length);
-                endPadded = endRow_;
-            } else if (endRow_.length < startRow_.length) {
-                startPadded = startRow_;
-                endPadded = Bytes.padTail(endRow_, startRow_.length - endRow_.length);
-            } else {
-                startPadded = startRow_;
-                endPadded = endRow_;
-            }
+            byte[][] padded = padToSameLength(startRow_, endRow_);
             currRow_ = startRow_;
-            byte [] prependHeader = {1, 0};
-            bigStart_ = new BigInteger(Bytes.add(prependHeader, startPadded));
-            bigEnd_ = new BigInteger(Bytes.add(prependHeader, endPadded));
+            started_ = System.currentTimeMillis();
+            bigStart_ = keyToBigInteger(padded[0]);
+            bigEnd_ = keyToBigInteger(padded[1]);
             bigRange_ = new BigDecimal(bigEnd_.subtract(bigStart_));
+            batchSize_ = Math.max(scan.getCaching(), 1);
+            scan_ = scan;
+            if (sampleFraction_ > 0) {
+                initSampling(scan);
+            } else if ((cachingBytes_ > 0 || cachingMillis_ > 0) && scan.getBatch() <= 0) {
+                adaptive_ = true;
+                caching_ = Math.min(batchSize_, ADAPTIVE_START_CACHING);
+                scan.setCaching(caching_);
+            }
             LOG.info("setScan with ranges: " + bigStart_ + " - " + bigEnd_ + " ( " + bigRange_ + ")");
         }
 
+        /**
+           Fixes the key length used to measure distances, at least SAMPLE_KEY_BYTES so that
+           short region boundaries don't leave too coarse a grid, and fetches no more rows per
+           call than a burst needs. An unbounded end is taken as all 0xFF bytes.
+         */
+        private void initSampling(Scan scan) {
+            sampleKeyLength_ = Math.max(Math.max(startRow_.length, endRow_.length), SAMPLE_KEY_BYTES);
+            if (endRow_.length > 0) {
+                sampleEnd_ = sampleKeyToBigInteger(endRow_);
+            } else if (startRow_.length > 0) {
+                byte[] upper = new byte[sampleKeyLength_];
+                Arrays.fill(upper, (byte) 0xFF);
+                sampleEnd_ = keyToBigInteger(upper);
+            }
+            if (sampleFraction_ < BERNOULLI_SAMPLE_FRACTION) {
+                scan.setCaching(Math.min(batchSize_, SAMPLE_BURST_ROWS));
+            }
+        }
+
         @Override
         public boolean nextKeyValue() throws IOException, InterruptedException {
             if (limit_ > 0 && ++recordsSeen > limit_) {
                 return false;
             }
-            boolean hasMore = super.nextKeyValue();
+            boolean hasMore;
+            if (sampleFraction_ > 0) {
+                hasMore = nextSampled();
+            } else {
+                hasMore = (prefetchDepth_ > 0) ? nextPrefetched() : scannerNext();
+            }
+            if (hasMore) {
+                stats_.addRow(getCurrentValue());
+            }
             if (hasMore) {
                 currRow_ = getCurrentKey().get();
             }
@@ -195,6 +933,208 @@ public class HBaseTableInputFormat extends TableInputFormat {
 
         }
 
+        @Override
+        public ImmutableBytesWritable getCurrentKey() throws IOException, InterruptedException {
+            return isPrefetching() ? key_ : super.getCurrentKey();
+        }
+
+        @Override
+        public Result getCurrentValue() throws IOException, InterruptedException {
+            return isPrefetching() ? value_ : super.getCurrentValue();
+        }
+
+        private boolean isPrefetching() {
+            return prefetchDepth_ > 0 && sampleFraction_ <= 0;
+        }
+
+        /**
+           Samples the split in bursts of SAMPLE_BURST_ROWS consecutive rows. After each burst
+           the key distance it covered tells how densely rows are packed here, and the scanner
+           is restarted that distance divided by the sample fraction (with some jitter, so
+           regularly spaced keys don't alias) past where the burst began. Rows in between are
+           never read. Splits without usable key bounds, and large fractions where skipping
+           saves little, fall back to keeping each row with the sample probability.
+         */
+        private boolean nextSampled() throws IOException, InterruptedException {
+            if (random_ == null) {
+                random_ = new Random(Bytes.hashCode(startRow_));
+                burstStart_ = startRow_;
+            }
+            if (sampleEnd_ == null || sampleFraction_ >= BERNOULLI_SAMPLE_FRACTION) {
+                while (scannerNext()) {
+                    if (random_.nextDouble() < sampleFraction_) return true;
+                }
+                return false;
+            }
+            while (burstRows_ >= SAMPLE_BURST_ROWS) {
+                byte[] next = sampleJump(burstStart_, super.getCurrentKey().get());
+                if (next == null) return false;
+                reopenAt(next);
+                burstStart_ = next;
+                burstRows_ = 0;
+            }
+            if (!scannerNext()) return false;
+            burstRows_++;
+            return true;
+        }
+
+        /**
+           Where the next burst should start, or null if that is past the end of the split.
+         */
+        private byte[] sampleJump(byte[] burstStart, byte[] lastRow) {
+            BigInteger start = sampleKeyToBigInteger(burstStart);
+            BigInteger covered = sampleKeyToBigInteger(lastRow).subtract(start);
+            byte[] next = null;
+            if (covered.signum() > 0) {
+                double jitter = 0.5 + random_.nextDouble();
+                BigDecimal jump = new BigDecimal(covered).multiply(BigDecimal.valueOf(jitter / sampleFraction_));
+                BigInteger nextValue = start.add(jump.toBigInteger());
+                if (nextValue.compareTo(sampleEnd_) >= 0) return null;
+                next = bigIntegerToKey(nextValue, sampleKeyLength_);
+            }
+            if (next == null || Bytes.compareTo(next, lastRow) <= 0) {
+                next = KeyRange.successor(lastRow);
+            }
+            return (endRow_.length > 0 && Bytes.compareTo(next, endRow_) >= 0) ? null : next;
+        }
+
+        private BigInteger sampleKeyToBigInteger(byte[] key) {
+            byte[] fixed = (key.length >= sampleKeyLength_) ? Bytes.head(key, sampleKeyLength_) :
+                Bytes.padTail(key, sampleKeyLength_ - key.length);
+            return keyToBigInteger(fixed);
+        }
+
+        /**
+           Advances the scanner, timing the call. The client scanner fetches caching rows per
+           round trip, so a round trip is counted whenever the rows of the last one have been
+           handed out.
+         */
+        private boolean scannerNext() throws IOException, InterruptedException {
+            if (pendingRestart_ != null) {
+                reopenAt(pendingRestart_);
+                pendingRestart_ = null;
+            }
+            if (cachedRows_ <= 0) {
+                stats_.add(ScanStats.Counter.SCANNER_NEXT_CALLS, 1);
+                cachedRows_ = (scan_.getCaching() > 0) ? scan_.getCaching() : Math.max(table_.getScannerCaching(), 1);
+            }
+            long started = System.nanoTime();
+            boolean hasMore = super.nextKeyValue();
+            long elapsed = System.nanoTime() - started;
+            stats_.add(ScanStats.Counter.SCANNER_BLOCKED_MILLIS, elapsed);
+            cachedRows_--;
+            if (!adaptive_) return hasMore;
+
+            windowNanos_ += elapsed;
+            if (hasMore) {
+                Result result = super.getCurrentValue();
+                windowBytes_ += ScanStats.bytes(result);
+                if (++windowRows_ >= caching_) adaptCaching(result.getRow());
+            }
+            return hasMore;
+        }
+
+        /**
+           Called after every caching_ rows, which is one scanner round trip. Sizes the next
+           round trips from the average row size and time per row seen in this one: as many
+           rows as fit in cachingBytes_, and as the region server can return within
+           cachingMillis_, growing at most ADAPTIVE_MAX_GROWTH times per step so one run of
+           small rows can't overshoot. The scanner's caching is fixed when it is opened, so a
+           change reopens it after the current row; small changes aren't worth that and are
+           ignored.
+         */
+        private void adaptCaching(byte[] row) {
+            double rowBytes = Math.max((double) windowBytes_ / windowRows_, 1);
+            double rowNanos = Math.max((double) windowNanos_ / windowRows_, 1);
+            windowRows_ = 0;
+            windowBytes_ = 0;
+            windowNanos_ = 0;
+
+            long wanted = Math.min(ADAPTIVE_MAX_CACHING, (long) caching_ * ADAPTIVE_MAX_GROWTH);
+            if (cachingBytes_ > 0) wanted = Math.min(wanted, (long) (cachingBytes_ / rowBytes));
+            if (cachingMillis_ > 0) wanted = Math.min(wanted, (long) (cachingMillis_ * NANOS_PER_MILLI / rowNanos));
+            int caching = (int) Math.max(wanted, 1);
+            if (caching < 2 * caching_ && 2 * caching > caching_) return;
+
+            byte[] next = KeyRange.successor(row);
+            if (endRow_.length > 0 && Bytes.compareTo(next, endRow_) >= 0) return;
+            LOG.info("Changing scanner caching from " + caching_ + " to " + caching + " rows at " + Bytes.toStringBinary(row) +
+                     " (" + (long) rowBytes + " bytes and " + (long) (rowNanos / 1000) + " us per row)");
+            caching_ = caching;
+            scan_.setCaching(caching);
+            pendingRestart_ = next;
+        }
+
+        private Result scannerValue() throws IOException, InterruptedException {
+            return super.getCurrentValue();
+        }
+
+        /**
+           Hands out rows fetched by the background ScanPrefetcher, starting it on first use.
+         */
+        private boolean nextPrefetched() throws IOException, InterruptedException {
+            if (prefetcher_ == null) {
+                prefetcher_ = new ScanPrefetcher(prefetchDepth_, batchSize_);
+                prefetcher_.start();
+            }
+            while (batch_ == null || batchIndex_ >= batch_.size()) {
+                if (batch_ == END_OF_SCAN) return false;
+                long started = System.nanoTime();
+                batch_ = prefetcher_.take();
+                stats_.add(ScanStats.Counter.PREFETCH_WAIT_MILLIS, System.nanoTime() - started);
+                batchIndex_ = 0;
+            }
+            value_ = batch_.get(batchIndex_++);
+            key_ = new ImmutableBytesWritable(value_.getRow());
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // A prefetch thread stuck in a scanner call keeps the scanner until it returns
+            if (prefetcher_ == null || prefetcher_.shutdown()) {
+                closeScanner();
+            }
+            stats_.flush();
+            logStats();
+        }
+
+        private void closeScanner() {
+            super.close();
+        }
+
+        /**
+           Starts a new scanner at the given row. restart() would leave the current scanner
+           open on its region server until the lease expired.
+         */
+        private void reopenAt(byte[] row) throws IOException {
+            closeScanner();
+            long started = System.nanoTime();
+            restart(row);
+            stats_.add(ScanStats.Counter.SCANNER_BLOCKED_MILLIS, System.nanoTime() - started);
+            cachedRows_ = 0;
+        }
+
+        /**
+           Logs what this split cost, with the region and server it was read from, so slow
+           region servers stand out in the task logs.
+         */
+        private void logStats() {
+            String region = "unknown region";
+            String location = "unknown location";
+            try {
+                if (table_ != null) {
+                    HRegionLocation regionLocation = table_.getRegionLocation(startRow_);
+                    region = regionLocation.getRegionInfo().getRegionNameAsString();
+                    location = regionLocation.getServerAddress().getHostname();
+                }
+            } catch (IOException e) {
+                LOG.debug("Unable to locate region for " + Bytes.toStringBinary(startRow_), e);
+            }
+            LOG.info("Scanned [" + Bytes.toStringBinary(startRow_) + ", " + Bytes.toStringBinary(endRow_) + ") of " +
+                     region + " on " + location + ": " + stats_ + ", " + (System.currentTimeMillis() - started_) + " ms in total");
+        }
+
         @Override
         public float getProgress() {
             if (currRow_ == null || currRow_.length == 0 || endRow_.length == 0 || endRow_ == HConstants.LAST_ROW) {
@@ -207,8 +1147,7 @@ public class HBaseTableInputFormat extends TableInputFormat {
             if (currRow_.length < startRow_.length) {
                 lastPadded = Bytes.padTail(currRow_, startRow_.length - currRow_.length);
             }
-            byte [] prependHeader = {1, 0};
-            BigInteger bigLastRow = new BigInteger(Bytes.add(prependHeader, lastPadded));
+            BigInteger bigLastRow = keyToBigInteger(lastPadded);
             if (bigLastRow.compareTo(bigEnd_) > 0) {
                 return progressSoFar_;
             }
@@ -222,5 +1161,99 @@ public class HBaseTableInputFormat extends TableInputFormat {
             }            
         }
 
+        /**
+           Reads ahead of the Pig pipeline on a background thread. Rows are pulled from the
+           underlying scanner in batches of the scan's caching size and handed over through a
+           queue holding at most prefetchDepth batches, so the scanner round trip for the next
+           batch overlaps with processing of the current one.
+         */
+        private class ScanPrefetcher implements Runnable {
+
+            private final BlockingQueue<List<Result>> queue_;
+            private final int batchSize_;
+            private final Thread thread_;
+            private volatile boolean stopped_ = false;
+            private volatile Throwable error_;
+            private boolean exited_ = false;
+            private boolean closeOnExit_ = false;
+
+            ScanPrefetcher(int depth, int batchSize) {
+                queue_ = new ArrayBlockingQueue<List<Result>>(depth);
+                batchSize_ = batchSize;
+                thread_ = new Thread(this, "hbase-scan-prefetch " + Bytes.toStringBinary(startRow_));
+                thread_.setDaemon(true);
+            }
+
+            void start() {
+                thread_.start();
+            }
+
+            public void run() {
+                try {
+                    List<Result> batch = new ArrayList<Result>(batchSize_);
+                    while (!stopped_ && scannerNext()) {
+                        batch.add(scannerValue());
+                        if (batch.size() >= batchSize_) {
+                            queue_.put(batch);
+                            batch = new ArrayList<Result>(batchSize_);
+                        }
+                    }
+                    if (!batch.isEmpty()) queue_.put(batch);
+                } catch (InterruptedException e) {
+                    // shutdown() interrupts us when the reader is closed early
+                } catch (Throwable t) {
+                    error_ = t;
+                } finally {
+                    while (!stopped_ && !queue_.offer(END_OF_SCAN)) {
+                        try {
+                            queue_.put(END_OF_SCAN);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                    synchronized (this) {
+                        exited_ = true;
+                        if (closeOnExit_) closeScanner();
+                    }
+                }
+            }
+
+            /**
+               Blocks until the next batch is available. Returns END_OF_SCAN once the scan is
+               exhausted and rethrows any error the background thread ran into.
+             */
+            List<Result> take() throws IOException, InterruptedException {
+                List<Result> batch = queue_.take();
+                if (batch == END_OF_SCAN && error_ != null) {
+                    if (error_ instanceof IOException) throw (IOException) error_;
+                    throw new IOException(error_);
+                }
+                return batch;
+            }
+
+            /**
+               Stops the thread. Returns true once it has exited, leaving the scanner to the
+               caller. Interrupting doesn't abort a scanner call already under way, so if the
+               thread is still in one after PREFETCH_SHUTDOWN_MILLIS, it is left to close the
+               scanner itself when the call returns, and false is returned.
+             */
+            boolean shutdown() {
+                stopped_ = true;
+                queue_.clear();
+                thread_.interrupt();
+                try {
+                    thread_.join(PREFETCH_SHUTDOWN_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (this) {
+                    if (exited_) return true;
+                    closeOnExit_ = true;
+                }
+                LOG.warn("Scan prefetch thread for " + Bytes.toStringBinary(startRow_) + " is still in a scanner call; it will close the scanner when the call returns");
+                return false;
+            }
+        }
+
     }
 }
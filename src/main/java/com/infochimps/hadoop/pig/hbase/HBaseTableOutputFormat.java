@@ -1,16 +1,31 @@
 package com.infochimps.hadoop.pig.hbase;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionLocation;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.HConnectionManager;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.zookeeper.ZKUtil;
 import org.apache.hadoop.hbase.mapreduce.TableOutputCommitter;
 
@@ -51,6 +66,36 @@ public class HBaseTableOutputFormat<KEY> extends OutputFormat<KEY, Writable> imp
   /** Optional specification of the rs impl name of the peer cluster */
   public static final String REGION_SERVER_IMPL = "hbase.mapred.output.rs.impl";
 
+  /** Bytes of Puts to gather before handing them to the flusher thread (default 8MB). */
+  public static final String WRITE_BUFFER_BYTES = "pigsy.hbase.write_buffer_bytes";
+
+  /**
+   * Number of full write buffers that may wait for or be in the middle of a flush before
+   * writes block (default 2). Zero flushes on the writing thread.
+   */
+  public static final String MAX_IN_FLIGHT = "pigsy.hbase.max_in_flight";
+
+  /**
+   * Number of threads that send the Puts of a flush in chunks (default 0). The HTable's own
+   * flush already writes to every region server in parallel, but with a single request per
+   * server, so a server holding many of the flush's regions takes one long request while
+   * the others sit idle. Flush threads split each server's regions into up to
+   * {@link #FLUSH_THREADS_PER_SERVER} chunks sent concurrently. Zero leaves flushing to the
+   * HTable.
+   */
+  public static final String FLUSH_THREADS = "pigsy.hbase.flush_threads";
+
+  /**
+   * With {@link #FLUSH_THREADS}, how many of them may write to one region server at once
+   * (default 2). At 1 the threads would add nothing to the HTable's flush, so none are used.
+   */
+  public static final String FLUSH_THREADS_PER_SERVER = "pigsy.hbase.flush_threads_per_server";
+
+  private static final long DEFAULT_WRITE_BUFFER_BYTES = 8L * 1024 * 1024;
+  private static final int DEFAULT_MAX_IN_FLIGHT = 2;
+  private static final int DEFAULT_FLUSH_THREADS_PER_SERVER = 2;
+  private static final long FLUSHER_SHUTDOWN_SECONDS = 600;
+
   /** The configuration. */
   private Configuration conf = null;
 
@@ -58,21 +103,93 @@ public class HBaseTableOutputFormat<KEY> extends OutputFormat<KEY, Writable> imp
 
   /**
    * Writes the reducer output to an HBase table.
+   * <p>
+   * Puts are not copied: the writer takes ownership of every Put it is given, so callers
+   * must not change or reuse one after writing it. Puts are gathered until they reach
+   * {@link #WRITE_BUFFER_BYTES} and the batch is then handed to a background thread, which
+   * sends it while the caller goes on filling the next one. At most {@link #MAX_IN_FLIGHT}
+   * batches are waiting or being sent; beyond that writes block, which bounds the memory
+   * used. The first error a flush runs into is thrown by the next write or by close.
+   * <p>
+   * With flush threads, a flush groups its Puts by region and splits the regions of each
+   * region server into at most flushThreadsPerServer chunks, sent concurrently on a thread
+   * pool. An HTable buffers writes and is not thread safe, so each thread sends through an
+   * HTable of its own, sharing the table's connection. A row always goes through the chunk
+   * of its region, in the order written, and the next flush starts only once the previous
+   * one is complete, so the Puts of a row land in order.
    *
    * @param <KEY>  The type of the key.
    */
   protected static class TableRecordWriter<KEY> extends RecordWriter<KEY, Writable> {
 
-    /** The table to write to. */
+    /** The table to write to. Only the flusher uses it while flushes are in flight. */
     private HTable table;
 
+    private final long bufferBytes;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ExecutorService flusher;
+    private List<Put> buffer = new ArrayList<Put>();
+    private long bufferedBytes = 0;
+    private volatile IOException flushError;
+    private final int flushThreadsPerServer;
+    private final ExecutorService senders;
+    private final List<HTable> senderTables = Collections.synchronizedList(new ArrayList<HTable>());
+    private final ThreadLocal<HTable> senderTable = new ThreadLocal<HTable>();
+
     /**
      * Instantiate a TableRecordWriter with the HBase HClient for writing.
      *
      * @param table  The table to write to.
      */
     public TableRecordWriter(HTable table) {
+      this(table, DEFAULT_WRITE_BUFFER_BYTES, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param table  The table to write to.
+     * @param bufferBytes  Bytes of Puts per flush.
+     * @param maxInFlight  Number of batches that may be queued or flushing at once; zero
+     *   flushes on the calling thread.
+     */
+    public TableRecordWriter(HTable table, long bufferBytes, int maxInFlight) {
+      this(table, bufferBytes, maxInFlight, 0, 1);
+    }
+
+    /**
+     * @param table  The table to write to.
+     * @param bufferBytes  Bytes of Puts per flush.
+     * @param maxInFlight  Number of batches that may be queued or flushing at once; zero
+     *   flushes on the calling thread.
+     * @param flushThreads  Threads sending the chunks of a flush; zero sends through the
+     *   table alone.
+     * @param flushThreadsPerServer  Most of those threads writing to any one server; one
+     *   also sends through the table alone.
+     */
+    public TableRecordWriter(HTable table, long bufferBytes, int maxInFlight, int flushThreads, int flushThreadsPerServer) {
       this.table = table;
+      this.flushThreadsPerServer = Math.max(flushThreadsPerServer, 1);
+      this.senders = (flushThreads > 0 && this.flushThreadsPerServer > 1) ? Executors.newFixedThreadPool(flushThreads,
+          daemonThreads("hbase-write-sender " + Bytes.toString(table.getTableName()))) : null;
+      this.bufferBytes = Math.max(bufferBytes, 1);
+      this.maxInFlight = Math.max(maxInFlight, 0);
+      this.inFlight = new Semaphore(Math.max(this.maxInFlight, 1));
+      if (this.maxInFlight > 0) {
+        this.flusher = Executors.newSingleThreadExecutor(
+            daemonThreads("hbase-write-flusher " + Bytes.toString(table.getTableName())));
+      } else {
+        this.flusher = null;
+      }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+      return new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, name);
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
     }
 
     /**
@@ -84,7 +201,42 @@ public class HBaseTableOutputFormat<KEY> extends OutputFormat<KEY, Writable> imp
      */
     @Override
     public void close(TaskAttemptContext context) throws IOException {
-      this.table.close();
+      IOException error = null;
+      try {
+        flushBuffer();
+        awaitFlushes();
+        checkFlushError();
+      } catch (IOException e) {
+        error = e;
+      } finally {
+        if (flusher != null) {
+          flusher.shutdown();
+          try {
+            flusher.awaitTermination(FLUSHER_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        if (senders != null) senders.shutdown();
+        // The tables are closed even when a flush failed, and the flush's error wins
+        for (HTable sender : senderTables) {
+          error = closeTable(sender, error);
+        }
+        error = closeTable(this.table, error);
+      }
+      if (error != null) throw error;
+    }
+
+    /**
+     * Closes a table, returning the earlier error if there was one, or else the table's.
+     */
+    private static IOException closeTable(HTable table, IOException error) {
+      try {
+        table.close();
+      } catch (IOException e) {
+        if (error == null) return e;
+      }
+      return error;
     }
 
     /**
@@ -97,9 +249,153 @@ public class HBaseTableOutputFormat<KEY> extends OutputFormat<KEY, Writable> imp
      */
     @Override
     public void write(KEY key, Writable value) throws IOException {
-      if (value instanceof Put) this.table.put(new Put((Put)value));
-      else if (value instanceof Delete) this.table.delete(new Delete((Delete)value));
-      else throw new IOException("Pass a Delete or a Put");
+      checkFlushError();
+      if (value instanceof Put) {
+        Put put = (Put) value;
+        buffer.add(put);
+        bufferedBytes += put.heapSize();
+        if (bufferedBytes >= bufferBytes) flushBuffer();
+      } else if (value instanceof Delete) {
+        // Deletes go straight to the table, so every Put written before must land first
+        flushBuffer();
+        awaitFlushes();
+        checkFlushError();
+        this.table.delete((Delete) value);
+      } else {
+        throw new IOException("Pass a Delete or a Put");
+      }
+    }
+
+    /**
+     * Hands the buffered Puts to the flusher, waiting for a free slot if maxInFlight
+     * batches are already queued or being sent.
+     */
+    private void flushBuffer() throws IOException {
+      if (buffer.isEmpty()) return;
+      final List<Put> batch = buffer;
+      buffer = new ArrayList<Put>(batch.size());
+      bufferedBytes = 0;
+      if (flusher == null) {
+        send(batch);
+        return;
+      }
+      try {
+        inFlight.acquire();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted waiting to flush " + batch.size() + " puts");
+      }
+      flusher.execute(new Runnable() {
+          public void run() {
+            try {
+              if (flushError == null) send(batch);
+            } catch (IOException e) {
+              flushError = e;
+            } catch (RuntimeException e) {
+              flushError = new IOException(e);
+            } finally {
+              inFlight.release();
+            }
+          }
+        });
+    }
+
+    private void send(List<Put> batch) throws IOException {
+      if (senders == null) {
+        table.put(batch);
+        table.flushCommits();
+        return;
+      }
+
+      // Group by region, keeping the order of each region's Puts, then deal every server's
+      // regions out to at most flushThreadsPerServer senders. Locations come from the
+      // connection's cache; a stale one only costs the sender a retry.
+      Map<String, List<Put>> byRegion = new LinkedHashMap<String, List<Put>>();
+      Map<String, List<String>> regionsByServer = new LinkedHashMap<String, List<String>>();
+      for (Put put : batch) {
+        HRegionLocation location = table.getRegionLocation(put.getRow());
+        String region = location.getRegionInfo().getRegionNameAsString();
+        List<Put> puts = byRegion.get(region);
+        if (puts == null) {
+          puts = new ArrayList<Put>();
+          byRegion.put(region, puts);
+          String server = location.getServerAddress().toString();
+          List<String> regions = regionsByServer.get(server);
+          if (regions == null) {
+            regions = new ArrayList<String>();
+            regionsByServer.put(server, regions);
+          }
+          regions.add(region);
+        }
+        puts.add(put);
+      }
+
+      List<Future<Object>> sent = new ArrayList<Future<Object>>();
+      for (List<String> regions : regionsByServer.values()) {
+        int groups = Math.min(flushThreadsPerServer, regions.size());
+        List<List<Put>> chunks = new ArrayList<List<Put>>(groups);
+        for (int i = 0; i < groups; i++) chunks.add(new ArrayList<Put>());
+        for (int i = 0; i < regions.size(); i++) {
+          chunks.get(i % groups).addAll(byRegion.get(regions.get(i)));
+        }
+        for (final List<Put> chunk : chunks) {
+          sent.add(senders.submit(new Callable<Object>() {
+              public Object call() throws IOException {
+                HTable sender = senderTable();
+                sender.put(chunk);
+                sender.flushCommits();
+                return null;
+              }
+            }));
+        }
+      }
+
+      IOException error = null;
+      for (Future<Object> future : sent) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted waiting for puts to be sent");
+        } catch (ExecutionException e) {
+          if (error == null) {
+            error = (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+          }
+        }
+      }
+      if (error != null) throw error;
+    }
+
+    /**
+     * This sender thread's own HTable, sharing the table's connection.
+     */
+    private HTable senderTable() throws IOException {
+      HTable sender = senderTable.get();
+      if (sender == null) {
+        sender = new HTable(table.getConfiguration(), table.getTableName());
+        sender.setAutoFlush(false);
+        senderTable.set(sender);
+        senderTables.add(sender);
+      }
+      return sender;
+    }
+
+    /**
+     * Blocks until every batch handed to the flusher has been sent.
+     */
+    private void awaitFlushes() throws IOException {
+      if (flusher == null) return;
+      try {
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted waiting for flushes to finish");
+      }
+    }
+
+    private void checkFlushError() throws IOException {
+      IOException error = flushError;
+      if (error != null) {
+        throw new IOException("Flushing puts to " + Bytes.toString(table.getTableName()) + " failed", error);
+      }
     }
   }
 
@@ -114,7 +410,11 @@ public class HBaseTableOutputFormat<KEY> extends OutputFormat<KEY, Writable> imp
    */
   @Override
   public RecordWriter<KEY, Writable> getRecordWriter(TaskAttemptContext context) throws IOException, InterruptedException {
-    return new TableRecordWriter<KEY>(this.table);
+    Configuration conf = context.getConfiguration();
+    return new TableRecordWriter<KEY>(this.table, conf.getLong(WRITE_BUFFER_BYTES, DEFAULT_WRITE_BUFFER_BYTES),
+                                      conf.getInt(MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT),
+                                      conf.getInt(FLUSH_THREADS, 0),
+                                      conf.getInt(FLUSH_THREADS_PER_SERVER, DEFAULT_FLUSH_THREADS_PER_SERVER));
   }
 
   /**
@@ -0,0 +1,477 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.TimeRange;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.HFileScanner;
+import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Base64;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.FSUtils;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+   Reads rows straight out of HFiles on the HDFS instead of through the region servers. The
+   input is either a table, whose regions' store files are read in place, or (when INPUT_PATH
+   is set) a directory of HFiles such as HFileStorage writes. Each region, or the set of files
+   under the path, is cut into key ranges of about SPLIT_BYTES each, and every split merges the
+   files that overlap its range back into whole rows, so tasks see the same Results a table
+   scan would give. The Scan in TableInputFormat.SCAN supplies the row range, families,
+   columns, versions and time range; its filters are not applied.
+   <p>
+   Only what has been flushed is visible: edits still in a region server's memstore are
+   missed, so flush the table before loading it this way. Deletes that have not yet been
+   compacted away are honoured.
+ */
+public class HFileInputFormat extends InputFormat<ImmutableBytesWritable, Result> implements Configurable {
+
+    private static final Log LOG = LogFactory.getLog(HFileInputFormat.class);
+
+    /** Path, directory or glob of HFiles to read instead of a table's store files. */
+    public static final String INPUT_PATH = "pigsy.hfile.input";
+    /** Approximate number of bytes of HFile read by one map task. */
+    public static final String SPLIT_BYTES = "pigsy.hfile.split_bytes";
+
+    private static final long DEFAULT_SPLIT_BYTES = 256L * 1024 * 1024;
+    private static final int MAX_LOCATIONS = 3;
+
+    /** Store files left behind by a region split are named storefile.parentregion */
+    private static final Pattern REFERENCE_NAME = Pattern.compile("^(\\d+)\\.(.+)$");
+
+    private Configuration conf;
+
+    public Configuration getConf() {
+        return conf;
+    }
+
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+    }
+
+    private Scan getScan() throws IOException {
+        String serializedScan = conf.get(TableInputFormat.SCAN);
+        Scan scan = new Scan();
+        if (serializedScan != null) {
+            scan.readFields(new DataInputStream(new ByteArrayInputStream(Base64.decode(serializedScan))));
+        }
+        return scan;
+    }
+
+    @Override
+    public List<InputSplit> getSplits(JobContext context) throws IOException {
+        Scan scan = getScan();
+        KeyRange range = new KeyRange(scan.getStartRow(), scan.getStopRow());
+        Map<byte[], NavigableSet<byte[]>> families = scan.getFamilyMap();
+        long splitBytes = conf.getLong(SPLIT_BYTES, DEFAULT_SPLIT_BYTES);
+
+        List<HFileSplit> splits = new ArrayList<HFileSplit>();
+        String input = conf.get(INPUT_PATH);
+        if (input != null) {
+            Path path = new Path(input);
+            FileSystem fs = path.getFileSystem(conf);
+            FileStatus[] matches = fs.globStatus(path);
+            if (matches == null || matches.length == 0) {
+                throw new IOException("No HFiles found at " + path);
+            }
+            List<Path> files = new ArrayList<Path>();
+            for (FileStatus match : matches) {
+                listFiles(fs, match, families, files);
+            }
+            splits.addAll(splitFiles(fs, files, range, splitBytes));
+        } else {
+            HTable table = new HTable(conf, conf.get(TableInputFormat.INPUT_TABLE));
+            Path tableDir = new Path(FSUtils.getRootDir(conf), Bytes.toString(table.getTableName()));
+            FileSystem fs = tableDir.getFileSystem(conf);
+            for (HRegionInfo region : table.getRegionsInfo().keySet()) {
+                KeyRange regionRange = range.intersect(region.getStartKey(), region.getEndKey());
+                if (regionRange == null) continue;
+                FileStatus[] familyDirs = fs.listStatus(new Path(tableDir, region.getEncodedName()));
+                if (familyDirs == null) continue;
+                List<Path> files = new ArrayList<Path>();
+                for (FileStatus familyDir : familyDirs) {
+                    if (!familyDir.isDir() || familyDir.getPath().getName().startsWith(".")) continue;
+                    if (!isWanted(families, familyDir.getPath().getName())) continue;
+                    for (FileStatus file : fs.listStatus(familyDir.getPath())) {
+                        if (!file.isDir()) files.add(resolveReference(file.getPath()));
+                    }
+                }
+                splits.addAll(splitFiles(fs, files, regionRange, splitBytes));
+            }
+        }
+        Collections.sort(splits);
+        LOG.info("Reading HFiles directly with " + splits.size() + " splits");
+        return new ArrayList<InputSplit>(splits);
+    }
+
+    private static boolean isWanted(Map<byte[], NavigableSet<byte[]>> families, String family) {
+        return families.isEmpty() || families.containsKey(Bytes.toBytes(family));
+    }
+
+    /**
+       Collects every HFile under the given path. HFileOutputFormat writes one subdirectory per
+       column family, so files are only kept when their parent directory is a wanted family
+       or the path names them directly.
+     */
+    private static void listFiles(FileSystem fs, FileStatus status, Map<byte[], NavigableSet<byte[]>> families, List<Path> files) throws IOException {
+        if (!status.isDir()) {
+            files.add(status.getPath());
+            return;
+        }
+        for (FileStatus child : fs.listStatus(status.getPath())) {
+            String name = child.getPath().getName();
+            if (name.startsWith("_") || name.startsWith(".")) continue;
+            if (child.isDir()) {
+                listFiles(fs, child, families, files);
+            } else if (isWanted(families, status.getPath().getName())) {
+                files.add(child.getPath());
+            }
+        }
+    }
+
+    /**
+       A reference left in a daughter region by a split points at the parent's store file. The
+       whole parent file is read instead; the split's key range, which never reaches past the
+       daughter's boundaries, keeps the other half out.
+     */
+    static Path resolveReference(Path file) {
+        Matcher m = REFERENCE_NAME.matcher(file.getName());
+        if (!m.matches()) return file;
+        Path familyDir = file.getParent();
+        Path tableDir = familyDir.getParent().getParent();
+        return new Path(new Path(new Path(tableDir, m.group(2)), familyDir.getName()), m.group(1));
+    }
+
+    private static class StoreFileInfo {
+        final Path path_;
+        final byte[] firstRow_;
+        final byte[] lastRow_;
+        final long length_;
+        final BlockLocation[] blocks_;
+
+        StoreFileInfo(Path path, byte[] firstRow, byte[] lastRow, long length, BlockLocation[] blocks) {
+            path_ = path;
+            firstRow_ = firstRow;
+            lastRow_ = lastRow;
+            length_ = length;
+            blocks_ = blocks;
+        }
+
+        boolean overlaps(byte[] start, byte[] stop) {
+            return Bytes.compareTo(lastRow_, start) >= 0 &&
+                (stop.length == 0 || Bytes.compareTo(firstRow_, stop) < 0);
+        }
+    }
+
+    /**
+       Cuts the rows of a group of files falling in the given range into pieces of about
+       splitBytes. The 0.90 HFile reader does not expose its block index, so piece boundaries
+       are interpolated between the first and last rows actually present in the files.
+     */
+    private List<HFileSplit> splitFiles(FileSystem fs, List<Path> paths, KeyRange range, long splitBytes) throws IOException {
+        List<HFileSplit> splits = new ArrayList<HFileSplit>();
+        List<StoreFileInfo> files = new ArrayList<StoreFileInfo>();
+        byte[] firstRow = null;
+        byte[] lastRow = null;
+        long totalBytes = 0;
+        for (Path path : paths) {
+            HFile.Reader reader = new HFile.Reader(fs, path, null, false);
+            try {
+                reader.loadFileInfo();
+                if (reader.getEntries() == 0) continue;
+                byte[] first = KeyValue.createKeyValueFromKey(reader.getFirstKey()).getRow();
+                byte[] last = KeyValue.createKeyValueFromKey(reader.getLastKey()).getRow();
+                FileStatus status = fs.getFileStatus(path);
+                files.add(new StoreFileInfo(path, first, last, status.getLen(),
+                                            fs.getFileBlockLocations(status, 0, status.getLen())));
+                if (firstRow == null || Bytes.compareTo(first, firstRow) < 0) firstRow = first;
+                if (lastRow == null || Bytes.compareTo(last, lastRow) > 0) lastRow = last;
+                totalBytes += status.getLen();
+            } finally {
+                reader.close();
+            }
+        }
+        if (files.isEmpty()) return splits;
+        KeyRange bounds = range.intersect(firstRow, KeyRange.successor(lastRow));
+        if (bounds == null) return splits;
+
+        int pieces = (int) Math.max(1, (totalBytes + splitBytes - 1) / Math.max(splitBytes, 1));
+        byte[][] keys = (pieces > 1) ? HBaseTableInputFormat.interpolateKeys(bounds.getStart(), bounds.getStop(), pieces) : null;
+        if (keys == null) keys = new byte[][] {bounds.getStart(), bounds.getStop()};
+
+        for (int i = 0; i < keys.length - 1; i++) {
+            List<StoreFileInfo> overlapping = new ArrayList<StoreFileInfo>();
+            for (StoreFileInfo file : files) {
+                if (file.overlaps(keys[i], keys[i+1])) overlapping.add(file);
+            }
+            if (overlapping.isEmpty()) continue;
+            String[] names = new String[overlapping.size()];
+            for (int j = 0; j < names.length; j++) {
+                names[j] = overlapping.get(j).path_.toString();
+            }
+            splits.add(new HFileSplit(names, keys[i], keys[i+1], totalBytes / (keys.length - 1), topHosts(overlapping)));
+        }
+        return splits;
+    }
+
+    /**
+       The datanodes holding the most bytes of the given files.
+     */
+    private static String[] topHosts(List<StoreFileInfo> files) throws IOException {
+        final Map<String, Long> hostBytes = new HashMap<String, Long>();
+        for (StoreFileInfo file : files) {
+            for (BlockLocation block : file.blocks_) {
+                for (String host : block.getHosts()) {
+                    Long bytes = hostBytes.get(host);
+                    hostBytes.put(host, (bytes == null ? 0 : bytes) + block.getLength());
+                }
+            }
+        }
+        List<String> hosts = new ArrayList<String>(hostBytes.keySet());
+        Collections.sort(hosts, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    return hostBytes.get(b).compareTo(hostBytes.get(a));
+                }
+            });
+        List<String> top = hosts.subList(0, Math.min(MAX_LOCATIONS, hosts.size()));
+        return top.toArray(new String[top.size()]);
+    }
+
+    @Override
+    public RecordReader<ImmutableBytesWritable, Result> createRecordReader(InputSplit split, TaskAttemptContext context) {
+        return new HFileRecordReader();
+    }
+
+    /**
+       A scanner over one file together with the cell it is positioned on.
+     */
+    private static class Cursor {
+        final HFileScanner scanner_;
+        final long sequenceId_;
+        KeyValue current_;
+
+        /**
+           @param sequenceId the file's maximum sequence id, which orders files holding the same cell
+         */
+        Cursor(HFileScanner scanner, long sequenceId) {
+            scanner_ = scanner;
+            sequenceId_ = sequenceId;
+            current_ = scanner.getKeyValue();
+        }
+
+        boolean advance() throws IOException {
+            if (!scanner_.next()) return false;
+            current_ = scanner_.getKeyValue();
+            return true;
+        }
+    }
+
+    /**
+       Merges the split's files in KeyValue order and assembles each row from the cells that
+       survive the Scan's column, time range and version limits and any delete markers.
+     */
+    protected class HFileRecordReader extends RecordReader<ImmutableBytesWritable, Result> {
+
+        private HFileSplit split_;
+        private final List<HFile.Reader> readers_ = new ArrayList<HFile.Reader>();
+        private PriorityQueue<Cursor> heap_;
+
+        private Map<byte[], NavigableSet<byte[]>> families_;
+        private TimeRange timeRange_;
+        private int maxVersions_;
+
+        private BigInteger bigStart_;
+        private BigInteger bigRange_;
+        private int keyLength_;
+
+        private ImmutableBytesWritable key_;
+        private Result value_;
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+            split_ = (HFileSplit) split;
+            Scan scan = getScan();
+            families_ = scan.getFamilyMap();
+            timeRange_ = scan.getTimeRange();
+            maxVersions_ = scan.getMaxVersions();
+
+            heap_ = new PriorityQueue<Cursor>(Math.max(split_.getFiles().length, 1), new Comparator<Cursor>() {
+                    public int compare(Cursor a, Cursor b) {
+                        int order = KeyValue.COMPARATOR.compare(a.current_, b.current_);
+                        if (order != 0) return order;
+                        // The same cell in two files: the newer file's comes first, and wins
+                        return (a.sequenceId_ > b.sequenceId_) ? -1 : (a.sequenceId_ < b.sequenceId_ ? 1 : 0);
+                    }
+                });
+            for (String file : split_.getFiles()) {
+                Path path = new Path(file);
+                HFile.Reader reader = new HFile.Reader(path.getFileSystem(conf), path, null, false);
+                readers_.add(reader);
+                byte[] sequenceId = reader.loadFileInfo().get(StoreFile.MAX_SEQ_ID_KEY);
+                HFileScanner scanner = reader.getScanner(false, false);
+                if (seek(scanner, split_.getStartRow())) {
+                    heap_.add(new Cursor(scanner, (sequenceId == null) ? -1 : Bytes.toLong(sequenceId)));
+                }
+            }
+
+            byte[] start = split_.getStartRow();
+            byte[] stop = split_.getStopRow();
+            if (start.length > 0 && stop.length > 0) {
+                byte[][] padded = HBaseTableInputFormat.padToSameLength(start, stop);
+                keyLength_ = padded[0].length;
+                bigStart_ = HBaseTableInputFormat.keyToBigInteger(padded[0]);
+                bigRange_ = HBaseTableInputFormat.keyToBigInteger(padded[1]).subtract(bigStart_);
+            }
+            LOG.info("Reading " + split_);
+        }
+
+        /**
+           Positions the scanner on the first cell at or after the given row.
+         */
+        private boolean seek(HFileScanner scanner, byte[] row) throws IOException {
+            if (row.length == 0) return scanner.seekTo();
+            int position = scanner.seekTo(KeyValue.createFirstOnRow(row).getKey());
+            if (position < 0) return scanner.seekTo();
+            if (position == 0) return true;
+            return scanner.next();
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException {
+            byte[] stop = split_.getStopRow();
+            while (!heap_.isEmpty()) {
+                byte[] row = heap_.peek().current_.getRow();
+                if (stop.length > 0 && Bytes.compareTo(row, stop) >= 0) return false;
+
+                List<KeyValue> cells = new ArrayList<KeyValue>();
+                RowMerger merger = new RowMerger();
+                while (!heap_.isEmpty() && heap_.peek().current_.matchingRow(row)) {
+                    Cursor cursor = heap_.poll();
+                    KeyValue kv = cursor.current_;
+                    if (cursor.advance()) heap_.add(cursor);
+                    if (merger.accept(kv)) cells.add(kv);
+                }
+                if (!cells.isEmpty()) {
+                    key_ = new ImmutableBytesWritable(row);
+                    value_ = new Result(cells);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+           Decides, cell by cell in KeyValue order, which cells of one row are live.
+         */
+        private class RowMerger {
+            private KeyValue previous_;
+            private KeyValue column_;
+            private long familyDeleteTs_ = -1;
+            private long columnDeleteTs_ = -1;
+            private List<Long> versionDeletes_ = new ArrayList<Long>();
+            private int versions_ = 0;
+
+            boolean accept(KeyValue kv) {
+                // The same cell can only come from two files if both were written with it; the
+                // heap hands over the newest file's first, as the region server would read it
+                if (previous_ != null && KeyValue.COMPARATOR.compare(previous_, kv) == 0) return false;
+                boolean newFamily = previous_ == null || !previous_.matchingFamily(kv.getFamily());
+                previous_ = kv;
+                if (newFamily) familyDeleteTs_ = -1;
+                if (column_ == null || !ResultDecoder.sameColumn(column_, kv)) {
+                    column_ = kv;
+                    columnDeleteTs_ = -1;
+                    versionDeletes_.clear();
+                    versions_ = 0;
+                }
+
+                long ts = kv.getTimestamp();
+                byte type = kv.getType();
+                if (type == KeyValue.Type.DeleteFamily.getCode()) {
+                    familyDeleteTs_ = Math.max(familyDeleteTs_, ts);
+                    return false;
+                } else if (type == KeyValue.Type.DeleteColumn.getCode()) {
+                    columnDeleteTs_ = Math.max(columnDeleteTs_, ts);
+                    return false;
+                } else if (type == KeyValue.Type.Delete.getCode()) {
+                    versionDeletes_.add(ts);
+                    return false;
+                }
+                if (ts <= familyDeleteTs_ || ts <= columnDeleteTs_ || versionDeletes_.contains(ts)) return false;
+                if (!isWantedColumn(kv) || !timeRange_.withinTimeRange(ts)) return false;
+                if (versions_ >= maxVersions_) return false;
+                versions_++;
+                return true;
+            }
+        }
+
+        private boolean isWantedColumn(KeyValue kv) {
+            if (families_.isEmpty()) return true;
+            byte[] family = kv.getFamily();
+            if (!families_.containsKey(family)) return false;
+            NavigableSet<byte[]> qualifiers = families_.get(family);
+            return qualifiers == null || qualifiers.contains(kv.getQualifier());
+        }
+
+        @Override
+        public ImmutableBytesWritable getCurrentKey() {
+            return key_;
+        }
+
+        @Override
+        public Result getCurrentValue() {
+            return value_;
+        }
+
+        @Override
+        public float getProgress() {
+            if (key_ == null || bigRange_ == null || bigRange_.signum() <= 0) return 0;
+            byte[] row = key_.get();
+            byte[] key = (row.length >= keyLength_) ? Bytes.head(row, keyLength_) : Bytes.padTail(row, keyLength_ - row.length);
+            BigInteger done = HBaseTableInputFormat.keyToBigInteger(key).subtract(bigStart_);
+            float progress = (float) (done.doubleValue() / bigRange_.doubleValue());
+            return Math.max(0, Math.min(1, progress));
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (HFile.Reader reader : readers_) {
+                reader.close();
+            }
+            readers_.clear();
+        }
+    }
+}
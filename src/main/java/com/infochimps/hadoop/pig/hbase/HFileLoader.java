@@ -0,0 +1,95 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.IOException;
+
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.pig.data.Tuple;
+
+/**
+ * Loads an HBase table by reading its HFiles directly from the HDFS, without going through
+ * the region servers, for full passes that shouldn't compete with live traffic. The location
+ * is either a table, <code>hbase://table</code>, whose store files are read in place, or an
+ * HDFS directory of HFiles such as HFileStorage and HFileGraphStorage write. Columns, options
+ * and the tuples produced are those of StaticFamilyStorage.
+ * <pre>{@code
+ * tiles = LOAD 'hbase://tiles'
+ *         USING com.infochimps.hadoop.pig.hbase.HFileLoader('info:zoom data:geojson', '-loadKey -targetSplitBytes 536870912');
+ * }</pre>
+ * Only flushed data is visible, so flush the table first (<code>flush 'tiles'</code> in the
+ * shell) if recent writes matter. Splits hold about -targetSplitBytes of HFile each (default
+ * 256MB); -caching, -cachingBytes, -cachingMillis, -prefetch and -maxTableSplits have no
+ * effect here, and -limit and -sample are rejected. Salted tables (-salt) can only be loaded
+ * whole and unordered.
+ */
+public class HFileLoader extends StaticFamilyStorage {
+
+    private static final String HBASE_SCHEME = "hbase://";
+
+    public HFileLoader(String columnList) throws ParseException, IOException {
+        this(columnList, "");
+    }
+
+    public HFileLoader(String columnList, String optString) throws ParseException, IOException {
+        super(columnList, optString);
+        if (salt_ > 0 && (saltOrdered_ || !KeyRange.fromBounds(gt_, gte_, lt_, lte_).isUnbounded())) {
+            throw new IOException("HFileLoader reads salted tables whole and unordered; -saltOrdered and key bounds are not supported");
+        }
+        if (hasKeyRanges()) {
+            throw new IOException("HFileLoader reads whole tables or directories; -ranges, -prefixes and -rangeFile are not supported");
+        }
+        if (hasOption("where")) {
+            throw new IOException("HFileLoader does not apply server side filters; use a FILTER instead of -where");
+        }
+        if (hasOption("cacheDir")) {
+            throw new IOException("HFileLoader does not support -cacheDir");
+        }
+        if (hasOption("sample") || hasOption("limit")) {
+            throw new IOException("HFileLoader reads every row of its splits; -sample and -limit are not supported");
+        }
+    }
+
+    @Override
+    public void setLocation(String location, Job job) throws IOException {
+        super.setLocation(location, job);
+        if (!location.startsWith(HBASE_SCHEME)) {
+            m_conf.set(HFileInputFormat.INPUT_PATH, location);
+        }
+        if (targetSplitBytes_ > 0) {
+            m_conf.setLong(HFileInputFormat.SPLIT_BYTES, targetSplitBytes_);
+        }
+    }
+
+    /**
+       Nothing is read through the region servers, and a directory of HFiles has no table.
+     */
+    @Override
+    protected void openTable(String tablename) {
+    }
+
+    /**
+       Seeking goes through the region servers, so it needs a table to seek in.
+     */
+    @Override
+    public void seekNear(Tuple keys) throws IOException {
+        if (m_conf.get(HFileInputFormat.INPUT_PATH) != null) {
+            throw new IOException("A directory of HFiles cannot be the right hand side of a merge join");
+        }
+        super.seekNear(keys);
+    }
+
+    @Override
+    public String relativeToAbsolutePath(String location, Path curDir) throws IOException {
+        if (location.startsWith(HBASE_SCHEME)) return location;
+        return getAbsolutePath(location, curDir);
+    }
+
+    @Override
+    public InputFormat getInputFormat() {
+        HFileInputFormat inputFormat = new HFileInputFormat();
+        inputFormat.setConf(m_conf);
+        return inputFormat;
+    }
+}
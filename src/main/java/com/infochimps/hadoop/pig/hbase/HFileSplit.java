@@ -0,0 +1,90 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+/**
+   A range of rows [startRow, stopRow) read straight out of a set of HFiles, typically the
+   store files of one region. Every file that may hold rows in the range is listed; the reader
+   merges them.
+ */
+public class HFileSplit extends InputSplit implements Writable, Comparable<HFileSplit> {
+
+    private String[] files_;
+    private byte[] startRow_;
+    private byte[] stopRow_;
+    private long length_;
+    private String[] locations_;
+
+    public HFileSplit() {
+        this(new String[0], new byte[0], new byte[0], 0, new String[0]);
+    }
+
+    public HFileSplit(String[] files, byte[] startRow, byte[] stopRow, long length, String[] locations) {
+        files_ = files;
+        startRow_ = startRow;
+        stopRow_ = stopRow;
+        length_ = length;
+        locations_ = locations;
+    }
+
+    public String[] getFiles()  { return files_; }
+    public byte[] getStartRow() { return startRow_; }
+    public byte[] getStopRow()  { return stopRow_; }
+
+    /**
+       The share of the files' bytes estimated to fall in this split's range.
+     */
+    @Override
+    public long getLength() {
+        return length_;
+    }
+
+    @Override
+    public String[] getLocations() {
+        return locations_;
+    }
+
+    public int compareTo(HFileSplit other) {
+        return Bytes.compareTo(startRow_, other.startRow_);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(files_.length);
+        for (String file : files_) {
+            out.writeUTF(file);
+        }
+        Bytes.writeByteArray(out, startRow_);
+        Bytes.writeByteArray(out, stopRow_);
+        out.writeLong(length_);
+        out.writeInt(locations_.length);
+        for (String location : locations_) {
+            out.writeUTF(location);
+        }
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        files_ = new String[in.readInt()];
+        for (int i = 0; i < files_.length; i++) {
+            files_[i] = in.readUTF();
+        }
+        startRow_ = Bytes.readByteArray(in);
+        stopRow_ = Bytes.readByteArray(in);
+        length_ = in.readLong();
+        locations_ = new String[in.readInt()];
+        for (int i = 0; i < locations_.length; i++) {
+            locations_[i] = in.readUTF();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[" + Bytes.toStringBinary(startRow_) + ", " + Bytes.toStringBinary(stopRow_) + ") in " +
+            files_.length + " files, " + length_ + " bytes";
+    }
+}
@@ -0,0 +1,282 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.TimeRange;
+import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
+import org.apache.hadoop.hbase.util.Base64;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+   Reads only the rows named in a list of keys. The keys are read on the client, sorted and cut
+   at region boundaries; each resulting group (at most KEYS_PER_SPLIT keys) is written to its own
+   file and becomes one split located on the region's server. Tasks fetch their rows with
+   batched multi-gets built from the same Scan that TableInputFormat would use, so column
+   selection, filters, versions and time ranges carry over. Keys that don't exist are skipped.
+   <p>
+   Key files are text, one key per line (anything after a tab is ignored), binary-escaped with
+   double slashes as for -ranges and -rangeFile. On a salted table they are the logical keys; the
+   bucket prefix is added before grouping.
+ */
+public class KeyListInputFormat extends InputFormat<ImmutableBytesWritable, Result> implements Configurable {
+
+    private static final Log LOG = LogFactory.getLog(KeyListInputFormat.class);
+
+    /** Path, directory or glob of the key files. */
+    public static final String KEY_FILE = "pigsy.keylist.input";
+    /** Maximum number of keys handled by one map task. */
+    public static final String KEYS_PER_SPLIT = "pigsy.keylist.keys_per_split";
+    /** Number of Gets sent to the region server in one multi-get. */
+    public static final String GET_BATCH = "pigsy.keylist.get_batch";
+    /** Number of salt buckets the table's row keys are spread over, 0 if unsalted. */
+    public static final String SALT_BUCKETS = "pigsy.keylist.salt_buckets";
+    /** Where the per-split key files are written. */
+    public static final String WORK_DIR = "pigsy.keylist.workdir";
+
+    private Configuration conf;
+    private HTable table;
+
+    public Configuration getConf() {
+        return conf;
+    }
+
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+    }
+
+    private HTable getHTable() throws IOException {
+        if (table == null) {
+            table = new HTable(conf, conf.get(TableInputFormat.INPUT_TABLE));
+        }
+        return table;
+    }
+
+    @Override
+    public List<InputSplit> getSplits(JobContext context) throws IOException {
+        List<byte[]> keys = readKeys(new Path(conf.get(KEY_FILE)));
+        HTable table = getHTable();
+        Pair<byte[][], byte[][]> regions = table.getStartEndKeys();
+        byte[][] startKeys = regions.getFirst();
+        byte[][] endKeys = regions.getSecond();
+
+        int keysPerSplit = conf.getInt(KEYS_PER_SPLIT, 100000);
+        Path workDir = new Path(conf.get(WORK_DIR, "/tmp/pigsy/keylist"), context.getJobID().toString());
+        FileSystem fs = workDir.getFileSystem(conf);
+        fs.deleteOnExit(workDir);
+
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+        int region = 0;
+        int i = 0;
+        while (i < keys.size()) {
+            // Keys are sorted, so regions only ever move forward
+            while (endKeys[region].length > 0 && Bytes.compareTo(keys.get(i), endKeys[region]) >= 0) {
+                region++;
+            }
+            String location = table.getRegionLocation(startKeys[region]).getServerAddress().getHostname();
+
+            Path keyFile = new Path(workDir, "keys-" + splits.size());
+            FSDataOutputStream out = fs.create(keyFile);
+            byte[] firstKey = keys.get(i);
+            int count = 0;
+            try {
+                while (i < keys.size() && count < keysPerSplit &&
+                       (endKeys[region].length == 0 || Bytes.compareTo(keys.get(i), endKeys[region]) < 0)) {
+                    Bytes.writeByteArray(out, keys.get(i++));
+                    count++;
+                }
+            } finally {
+                out.close();
+            }
+            splits.add(new KeyListSplit(table.getTableName(), firstKey, keyFile.toString(), count, location));
+        }
+        LOG.info("Looking up " + keys.size() + " keys with " + splits.size() + " splits");
+        return splits;
+    }
+
+    /**
+       Reads, sorts and de-duplicates every key in the given files.
+     */
+    private List<byte[]> readKeys(Path path) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        List<Path> files = new ArrayList<Path>();
+        FileStatus[] matches = fs.globStatus(path);
+        if (matches == null || matches.length == 0) {
+            throw new IOException("No key files found at " + path);
+        }
+        for (FileStatus match : matches) {
+            if (match.isDir()) {
+                for (FileStatus child : fs.listStatus(match.getPath())) {
+                    String name = child.getPath().getName();
+                    if (!child.isDir() && !name.startsWith("_") && !name.startsWith(".")) files.add(child.getPath());
+                }
+            } else {
+                files.add(match.getPath());
+            }
+        }
+
+        List<byte[]> keys = new ArrayList<byte[]>();
+        for (Path file : files) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab >= 0) line = line.substring(0, tab);
+                    if (line.length() > 0) keys.add(salt(KeyRange.parseKey(line)));
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        Collections.sort(keys, Bytes.BYTES_COMPARATOR);
+        List<byte[]> unique = new ArrayList<byte[]>(keys.size());
+        for (byte[] key : keys) {
+            if (unique.isEmpty() || !Bytes.equals(key, unique.get(unique.size() - 1))) unique.add(key);
+        }
+        return unique;
+    }
+
+    private byte[] salt(byte[] key) {
+        int buckets = conf.getInt(SALT_BUCKETS, 0);
+        return (buckets > 0) ? Salt.salt(key, buckets) : key;
+    }
+
+    @Override
+    public RecordReader<ImmutableBytesWritable, Result> createRecordReader(InputSplit split, TaskAttemptContext context) {
+        return new KeyListRecordReader();
+    }
+
+    private static Scan convertStringToScan(String base64) throws IOException {
+        Scan scan = new Scan();
+        scan.readFields(new DataInputStream(new ByteArrayInputStream(Base64.decode(base64))));
+        return scan;
+    }
+
+    /**
+       Builds a Get for the row that asks for exactly what the Scan would have.
+     */
+    private static Get toGet(byte[] row, Scan scan) throws IOException {
+        Get get = new Get(row);
+        for (Map.Entry<byte[], NavigableSet<byte[]>> family : scan.getFamilyMap().entrySet()) {
+            if (family.getValue() == null) {
+                get.addFamily(family.getKey());
+            } else {
+                for (byte[] qualifier : family.getValue()) {
+                    get.addColumn(family.getKey(), qualifier);
+                }
+            }
+        }
+        get.setMaxVersions(scan.getMaxVersions());
+        TimeRange timeRange = scan.getTimeRange();
+        get.setTimeRange(timeRange.getMin(), timeRange.getMax());
+        if (scan.getFilter() != null) {
+            get.setFilter(scan.getFilter());
+        }
+        return get;
+    }
+
+    protected class KeyListRecordReader extends RecordReader<ImmutableBytesWritable, Result> {
+
+        private KeyListSplit split_;
+        private Scan scan_;
+        private FSDataInputStream keys_;
+        private long keysRead_ = 0;
+        private int getBatch_;
+
+        private Result[] batch_ = new Result[0];
+        private int batchIndex_ = 0;
+        private ImmutableBytesWritable key_;
+        private Result value_;
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+            split_ = (KeyListSplit) split;
+            String serializedScan = conf.get(TableInputFormat.SCAN);
+            scan_ = (serializedScan == null) ? new Scan() : convertStringToScan(serializedScan);
+            getBatch_ = conf.getInt(GET_BATCH, 1000);
+            Path keyFile = new Path(split_.getKeyFile());
+            keys_ = keyFile.getFileSystem(conf).open(keyFile);
+        }
+
+        /**
+           Fetches the rows for the next GET_BATCH keys with a single multi-get.
+         */
+        private boolean fetchBatch() throws IOException {
+            List<Get> gets = new ArrayList<Get>(getBatch_);
+            while (gets.size() < getBatch_ && keysRead_ < split_.getNumKeys()) {
+                gets.add(toGet(Bytes.readByteArray(keys_), scan_));
+                keysRead_++;
+            }
+            if (gets.isEmpty()) return false;
+            batch_ = getHTable().get(gets);
+            batchIndex_ = 0;
+            return true;
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException {
+            while (true) {
+                while (batchIndex_ < batch_.length) {
+                    Result result = batch_[batchIndex_++];
+                    if (result != null && !result.isEmpty()) {
+                        value_ = result;
+                        key_ = new ImmutableBytesWritable(result.getRow());
+                        return true;
+                    }
+                }
+                if (!fetchBatch()) return false;
+            }
+        }
+
+        @Override
+        public ImmutableBytesWritable getCurrentKey() {
+            return key_;
+        }
+
+        @Override
+        public Result getCurrentValue() {
+            return value_;
+        }
+
+        @Override
+        public float getProgress() {
+            return (split_.getNumKeys() == 0) ? 1 : (float) keysRead_ / split_.getNumKeys();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (keys_ != null) keys_.close();
+        }
+    }
+}
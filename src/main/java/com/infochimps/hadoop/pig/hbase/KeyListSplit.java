@@ -0,0 +1,78 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+/**
+   A batch of row keys that all fall in one region. The keys themselves live, sorted, in a
+   file written by KeyListInputFormat.getSplits so the split stays small.
+ */
+public class KeyListSplit extends InputSplit implements Writable, Comparable<KeyListSplit> {
+
+    private byte[] tableName_;
+    private byte[] firstKey_;
+    private String keyFile_;
+    private long numKeys_;
+    private String location_;
+
+    public KeyListSplit() {
+        this(new byte[0], new byte[0], "", 0, "");
+    }
+
+    public KeyListSplit(byte[] tableName, byte[] firstKey, String keyFile, long numKeys, String location) {
+        tableName_ = tableName;
+        firstKey_ = firstKey;
+        keyFile_ = keyFile;
+        numKeys_ = numKeys;
+        location_ = location;
+    }
+
+    public byte[] getTableName() { return tableName_; }
+    public byte[] getFirstKey()  { return firstKey_; }
+    public String getKeyFile()   { return keyFile_; }
+    public long getNumKeys()     { return numKeys_; }
+
+    /**
+       Splits have no meaningful byte length; the number of keys is what decides how long a
+       task will take.
+     */
+    @Override
+    public long getLength() {
+        return numKeys_;
+    }
+
+    @Override
+    public String[] getLocations() {
+        return new String[] {location_};
+    }
+
+    public int compareTo(KeyListSplit other) {
+        return Bytes.compareTo(firstKey_, other.firstKey_);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        Bytes.writeByteArray(out, tableName_);
+        Bytes.writeByteArray(out, firstKey_);
+        out.writeUTF(keyFile_);
+        out.writeLong(numKeys_);
+        out.writeUTF(location_);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        tableName_ = Bytes.readByteArray(in);
+        firstKey_ = Bytes.readByteArray(in);
+        keyFile_ = in.readUTF();
+        numKeys_ = in.readLong();
+        location_ = in.readUTF();
+    }
+
+    @Override
+    public String toString() {
+        return location_ + ":" + Bytes.toStringBinary(firstKey_) + " (" + numKeys_ + " keys in " + keyFile_ + ")";
+    }
+}
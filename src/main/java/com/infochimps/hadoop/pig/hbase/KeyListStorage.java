@@ -0,0 +1,89 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.IOException;
+
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.pig.data.Tuple;
+
+/**
+ * Loads just the rows of an HBase table whose keys are listed in a file on the HDFS, rather than
+ * scanning the whole table. The location is the key file (or a directory or glob of them, one
+ * key per line); the table, columns and options are those of StaticFamilyStorage, and the
+ * tuples come out exactly as StaticFamilyStorage would produce them. Options that choose which
+ * rows a scan reads (key bounds, -ranges, -limit, -sample), split rows up (-batch) or tune
+ * scans and their splits (-prefetch, -cachingBytes, -maxTableSplits and the like) are
+ * rejected. Keys are escaped as for -ranges.
+ * <pre>{@code
+ * wanted = LOAD 'wanted_tiles.txt'
+ *          USING com.infochimps.hadoop.pig.hbase.KeyListStorage('tiles', 'info:zoom data:geojson', '-loadKey');
+ * }</pre>
+ * Keys are sorted and grouped by region on the client, so the cost of a load grows with the
+ * number of keys rather than the size of the table. Tune with
+ * <code>SET pigsy.keylist.keys_per_split</code> (default 100000) and
+ * <code>SET pigsy.keylist.get_batch</code> (rows per multi-get, default 1000).
+ */
+public class KeyListStorage extends StaticFamilyStorage {
+
+    private final String tableName_;
+
+    public KeyListStorage(String tableName, String columnList) throws ParseException, IOException {
+        this(tableName, columnList, "");
+    }
+
+    public KeyListStorage(String tableName, String columnList, String optString) throws ParseException, IOException {
+        super(columnList, optString);
+        tableName_ = tableName;
+        if (hasKeyRanges()) {
+            throw new IOException("KeyListStorage loads the keys in its key file; -ranges, -prefixes and -rangeFile are not supported");
+        }
+        if (hasOption("cacheDir")) {
+            throw new IOException("KeyListStorage does not support -cacheDir");
+        }
+        for (String bound : new String[] {"gt", "gte", "lt", "lte"}) {
+            if (hasOption(bound)) {
+                throw new IOException("KeyListStorage loads the keys in its key file; -" + bound + " is not supported");
+            }
+        }
+        if (hasOption("batch")) {
+            throw new IOException("KeyListStorage fetches whole rows; -batch is not supported");
+        }
+        if (hasOption("limit") || hasOption("sample")) {
+            throw new IOException("KeyListStorage loads every listed key; -limit and -sample are not supported");
+        }
+        for (String scanOption : new String[] {"prefetch", "cachingBytes", "cachingMillis", "maxTableSplits", "orderedSplits", "targetSplitBytes", "saltOrdered"}) {
+            if (hasOption(scanOption)) {
+                throw new IOException("KeyListStorage fetches its rows with multi-gets rather than scans; -" + scanOption + " is not supported");
+            }
+        }
+    }
+
+    @Override
+    public void setLocation(String location, Job job) throws IOException {
+        super.setLocation(tableName_, job);
+        m_conf.set(KeyListInputFormat.KEY_FILE, location);
+        m_conf.setInt(KeyListInputFormat.SALT_BUCKETS, salt_);
+    }
+
+    @Override
+    public String relativeToAbsolutePath(String location, Path curDir) throws IOException {
+        return getAbsolutePath(location, curDir);
+    }
+
+    /**
+       Seeking would read every row of the table rather than the listed ones.
+     */
+    @Override
+    public void seekNear(Tuple keys) throws IOException {
+        throw new IOException("KeyListStorage cannot be the right hand side of a merge join");
+    }
+
+    @Override
+    public InputFormat getInputFormat() {
+        KeyListInputFormat inputFormat = new KeyListInputFormat();
+        inputFormat.setConf(m_conf);
+        return inputFormat;
+    }
+}
@@ -0,0 +1,214 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.pig.impl.util.Utils;
+
+/**
+   An interval of row keys using the same convention as a Scan: the start row is inclusive,
+   the stop row is exclusive, and an empty array on either side means the interval is
+   unbounded on that side.
+ */
+public class KeyRange {
+
+    private final byte[] start_;
+    private final byte[] stop_;
+
+    public KeyRange(byte[] start, byte[] stop) {
+        start_ = (start == null) ? HConstants.EMPTY_START_ROW : start;
+        stop_  = (stop == null) ? HConstants.EMPTY_END_ROW : stop;
+    }
+
+    /**
+       Turns the -gt/-gte/-lt/-lte options into a single range. Exclusive lower bounds become
+       the smallest key strictly greater than the bound, inclusive upper bounds become the
+       smallest key strictly greater than the bound, and when both flavours of a bound are
+       given the tighter one wins. Any of the arguments may be null.
+     */
+    public static KeyRange fromBounds(byte[] gt, byte[] gte, byte[] lt, byte[] lte) {
+        byte[] start = HConstants.EMPTY_START_ROW;
+        if (gt != null) start = successor(gt);
+        if (gte != null && Bytes.compareTo(gte, start) > 0) start = gte;
+
+        byte[] stop = HConstants.EMPTY_END_ROW;
+        if (lt != null) stop = lt;
+        if (lte != null) {
+            byte[] upper = successor(lte);
+            if (stop.length == 0 || Bytes.compareTo(upper, stop) < 0) stop = upper;
+        }
+        return new KeyRange(start, stop);
+    }
+
+    /**
+       The range of every key that starts with the prefix.
+     */
+    public static KeyRange forPrefix(byte[] prefix) {
+        return new KeyRange(prefix, prefixStop(prefix));
+    }
+
+    /**
+       The smallest row key that sorts after every key starting with the prefix: the prefix
+       with its last byte below 0xFF incremented and anything after dropped. A prefix of only
+       0xFF bytes has no such key, so it is unbounded.
+     */
+    public static byte[] prefixStop(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] stop = Bytes.head(prefix, i + 1);
+                stop[i]++;
+                return stop;
+            }
+        }
+        return HConstants.EMPTY_END_ROW;
+    }
+
+    /**
+       Parses a comma separated list of ranges, each written <code>start:stop</code> with
+       either side possibly empty, as double-slash-escaped binary keys. A literal comma or
+       colon in a key is written as \\x2C or \\x3A.
+     */
+    public static List<KeyRange> parseRanges(String spec) {
+        List<KeyRange> ranges = new ArrayList<KeyRange>();
+        for (String range : spec.split(",")) {
+            if (range.length() == 0) continue;
+            String[] bounds = range.split(":", -1);
+            if (bounds.length != 2) {
+                throw new IllegalArgumentException("Key ranges are written start:stop, not " + range);
+            }
+            ranges.add(new KeyRange(parseKey(bounds[0]), parseKey(bounds[1])));
+        }
+        return ranges;
+    }
+
+    /**
+       Parses a comma separated list of double-slash-escaped binary key prefixes.
+     */
+    public static List<KeyRange> parsePrefixes(String spec) {
+        List<KeyRange> ranges = new ArrayList<KeyRange>();
+        for (String prefix : spec.split(",")) {
+            if (prefix.length() > 0) ranges.add(forPrefix(parseKey(prefix)));
+        }
+        return ranges;
+    }
+
+    /**
+       Reads ranges from a text file, one per line: a start and a stop key separated by a
+       tab, or a single key prefix. Keys use the same escapes as parseRanges; blank lines and
+       lines starting with # are skipped.
+     */
+    public static List<KeyRange> readRanges(Path path, Configuration conf) throws IOException {
+        List<KeyRange> ranges = new ArrayList<KeyRange>();
+        FileSystem fs = path.getFileSystem(conf);
+        BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(path), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().length() == 0 || line.startsWith("#")) continue;
+                String[] fields = line.split("\t", -1);
+                if (fields.length == 1) {
+                    ranges.add(forPrefix(parseKey(fields[0])));
+                } else if (fields.length == 2) {
+                    ranges.add(new KeyRange(parseKey(fields[0]), parseKey(fields[1])));
+                } else {
+                    throw new IOException("Malformed line in key range file " + path + ": " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return ranges;
+    }
+
+    /**
+       A key as written in options and key files: binary-escaped, with double slashes.
+     */
+    static byte[] parseKey(String key) {
+        return Bytes.toBytesBinary(Utils.slashisize(key));
+    }
+
+    /**
+       Sorts ranges by start key, drops empty ones and merges those that overlap or touch, so
+       that no row is read twice.
+     */
+    public static List<KeyRange> coalesce(List<KeyRange> ranges) {
+        List<KeyRange> sorted = new ArrayList<KeyRange>(ranges.size());
+        for (KeyRange range : ranges) {
+            if (!range.isEmpty()) sorted.add(range);
+        }
+        Collections.sort(sorted, new Comparator<KeyRange>() {
+                public int compare(KeyRange a, KeyRange b) {
+                    return Bytes.compareTo(a.start_, b.start_);
+                }
+            });
+        List<KeyRange> merged = new ArrayList<KeyRange>(sorted.size());
+        KeyRange current = null;
+        for (KeyRange range : sorted) {
+            if (current != null && (current.stop_.length == 0 || Bytes.compareTo(range.start_, current.stop_) <= 0)) {
+                boolean longer = current.stop_.length > 0 &&
+                    (range.stop_.length == 0 || Bytes.compareTo(range.stop_, current.stop_) > 0);
+                if (longer) current = new KeyRange(current.start_, range.stop_);
+            } else {
+                if (current != null) merged.add(current);
+                current = range;
+            }
+        }
+        if (current != null) merged.add(current);
+        return merged;
+    }
+
+    /**
+       The smallest row key that sorts strictly after the given one.
+     */
+    public static byte[] successor(byte[] key) {
+        return Bytes.add(key, new byte[] {0});
+    }
+
+    public byte[] getStart() { return start_; }
+    public byte[] getStop()  { return stop_; }
+
+    public boolean isUnbounded() {
+        return start_.length == 0 && stop_.length == 0;
+    }
+
+    public boolean isEmpty() {
+        return stop_.length > 0 && Bytes.compareTo(start_, stop_) >= 0;
+    }
+
+    public boolean contains(byte[] key) {
+        return Bytes.compareTo(key, start_) >= 0 && (stop_.length == 0 || Bytes.compareTo(key, stop_) < 0);
+    }
+
+    /**
+       Intersects this range with [start, stop), typically a region's boundaries. Returns null
+       when the two do not overlap.
+     */
+    public KeyRange intersect(byte[] start, byte[] stop) {
+        byte[] newStart = (Bytes.compareTo(start, start_) > 0) ? start : start_;
+        byte[] newStop;
+        if (stop.length == 0) {
+            newStop = stop_;
+        } else if (stop_.length == 0) {
+            newStop = stop;
+        } else {
+            newStop = (Bytes.compareTo(stop, stop_) < 0) ? stop : stop_;
+        }
+        KeyRange result = new KeyRange(newStart, newStop);
+        return result.isEmpty() ? null : result;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + Bytes.toStringBinary(start_) + ", " + Bytes.toStringBinary(stop_) + ")";
+    }
+}
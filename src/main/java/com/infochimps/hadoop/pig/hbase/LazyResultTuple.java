@@ -0,0 +1,176 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+/**
+   A tuple that holds on to the raw Result of a row and only decodes a column the first time
+   get(i) is called for it. The leading fields, such as the row key, are supplied up front.
+   <p>
+   Anything that needs the whole tuple (serialization, comparison, hashing, appending or
+   sizing) first materializes it into an ordinary tuple and from then on delegates to it, so
+   rows that are filtered out after looking at one column never pay for decoding the rest.
+ */
+class LazyResultTuple implements Tuple {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient Result result_;
+    private transient ResultDecoder decoder_;
+    private transient ScanStats stats_;
+    private final Object[] fields_;
+    private final boolean[] decoded_;
+    private final int offset_;
+    private Tuple materialized_;
+
+    /**
+       @param stats where the time spent decoding columns is added up
+       @param leading the fields that come before the decoded columns
+     */
+    public LazyResultTuple(Result result, ResultDecoder decoder, ScanStats stats, Object... leading) {
+        result_ = result;
+        decoder_ = decoder;
+        stats_ = stats;
+        offset_ = leading.length;
+        fields_ = new Object[offset_ + decoder.size()];
+        decoded_ = new boolean[fields_.length];
+        for (int i = 0; i < offset_; i++) {
+            fields_[i] = leading[i];
+            decoded_[i] = true;
+        }
+    }
+
+    private Tuple materialize() throws ExecException {
+        if (materialized_ == null) {
+            Tuple tuple = TupleFactory.getInstance().newTuple(fields_.length);
+            for (int i = 0; i < fields_.length; i++) {
+                tuple.set(i, get(i));
+            }
+            materialized_ = tuple;
+            result_ = null;
+        }
+        return materialized_;
+    }
+
+    private Tuple materializeUnchecked() {
+        try {
+            return materialize();
+        } catch (ExecException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Object get(int fieldNum) throws ExecException {
+        if (materialized_ != null) return materialized_.get(fieldNum);
+        if (fieldNum < 0 || fieldNum >= fields_.length) {
+            throw new ExecException("Index " + fieldNum + " out of range for tuple of size " + fields_.length);
+        }
+        if (!decoded_[fieldNum]) {
+            long started = System.nanoTime();
+            fields_[fieldNum] = decoder_.decodeColumn(result_, fieldNum - offset_);
+            stats_.add(ScanStats.Counter.DECODE_MILLIS, System.nanoTime() - started);
+            decoded_[fieldNum] = true;
+        }
+        return fields_[fieldNum];
+    }
+
+    public void set(int fieldNum, Object val) throws ExecException {
+        if (materialized_ != null) {
+            materialized_.set(fieldNum, val);
+            return;
+        }
+        if (fieldNum < 0 || fieldNum >= fields_.length) {
+            throw new ExecException("Index " + fieldNum + " out of range for tuple of size " + fields_.length);
+        }
+        fields_[fieldNum] = val;
+        decoded_[fieldNum] = true;
+    }
+
+    public int size() {
+        return (materialized_ != null) ? materialized_.size() : fields_.length;
+    }
+
+    public boolean isNull(int fieldNum) throws ExecException {
+        return get(fieldNum) == null;
+    }
+
+    public byte getType(int fieldNum) throws ExecException {
+        return DataType.findType(get(fieldNum));
+    }
+
+    public List<Object> getAll() {
+        return materializeUnchecked().getAll();
+    }
+
+    public void append(Object val) {
+        materializeUnchecked().append(val);
+    }
+
+    public void reference(Tuple t) {
+        materialized_ = t;
+        result_ = null;
+    }
+
+    public long getMemorySize() {
+        return materializeUnchecked().getMemorySize();
+    }
+
+    public String toDelimitedString(String delim) throws ExecException {
+        return materialize().toDelimitedString(delim);
+    }
+
+    @Deprecated
+    public boolean isNull() {
+        return false;
+    }
+
+    @Deprecated
+    public void setNull(boolean isNull) {
+    }
+
+    public void write(DataOutput out) throws IOException {
+        materialize().write(out);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        materialized_ = TupleFactory.getInstance().newTuple();
+        materialized_.readFields(in);
+        result_ = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public int compareTo(Object other) {
+        return materializeUnchecked().compareTo(other);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return compareTo(other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return materializeUnchecked().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return materializeUnchecked().toString();
+    }
+
+    /**
+       Java serialization falls back to the materialized tuple, since a Result is not
+       Serializable.
+     */
+    private Object writeReplace() throws java.io.ObjectStreamException {
+        return materializeUnchecked();
+    }
+}
@@ -0,0 +1,443 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.pig.LoadCaster;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.hbase.HBaseBinaryConverter;
+import org.apache.pig.builtin.Utf8StorageConverter;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+/**
+   Turns the cells of a Result into tuple fields for a list of ColumnInfo. Rather than building
+   the nested family and qualifier maps of Result.getNoVersionMap, it walks the Result's sorted
+   KeyValue array once, matching each cell against the columns grouped by family and sorted by
+   qualifier. Values are copied once, straight out of the KeyValue's buffer.
+   <p>
+   Columns with a declared type are converted as they are decoded, without an intermediate
+   bytearray: binary ints, longs, floats and doubles are read in place when the caster is an
+   HBaseBinaryConverter, and plain decimal text is parsed in place otherwise. Anything else
+   goes through the caster.
+   <p>
+   Families can instead be returned as FamilyMaps, which keep a run of the Result's cells and
+   decode a value only when it is looked up.
+ */
+class ResultDecoder {
+
+    private final static byte[] ONE = Bytes.toBytes("1");
+
+    private final TupleFactory tupleFactory_ = TupleFactory.getInstance();
+    private final BagFactory bagFactory_ = BagFactory.getInstance();
+
+    private final List<ColumnInfo> columns_;
+    private final FamilyGroup[] groups_;
+    private final boolean versioned_;
+    private final LoadCaster caster_;
+    private final boolean binary_;
+    private final boolean familyMaps_;
+
+    public ResultDecoder(List<ColumnInfo> columns) {
+        this(columns, false);
+    }
+
+    public ResultDecoder(List<ColumnInfo> columns, boolean versioned) {
+        this(columns, versioned, new Utf8StorageConverter());
+    }
+
+    /**
+       @param versioned when true, family bags hold every version of every cell as
+       (qualifier, timestamp, value) tuples instead of the newest as (qualifier, value)
+       @param caster how values of typed columns are encoded
+     */
+    public ResultDecoder(List<ColumnInfo> columns, boolean versioned, LoadCaster caster) {
+        this(columns, versioned, caster, false);
+    }
+
+    /**
+       @param familyMaps when true, families load as FamilyMaps of qualifier to the newest
+       value rather than as bags; versioned must then be false
+     */
+    public ResultDecoder(List<ColumnInfo> columns, boolean versioned, LoadCaster caster, boolean familyMaps) {
+        if (versioned && familyMaps) {
+            throw new IllegalArgumentException("Column families can't load as maps when loading versions");
+        }
+        columns_ = columns;
+        familyMaps_ = familyMaps;
+        versioned_ = versioned;
+        caster_ = caster;
+        binary_ = caster instanceof HBaseBinaryConverter;
+
+        List<Integer> byFamily = new ArrayList<Integer>(columns.size());
+        for (int i = 0; i < columns.size(); i++) byFamily.add(i);
+        Collections.sort(byFamily, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    ColumnInfo colA = columns_.get(a);
+                    ColumnInfo colB = columns_.get(b);
+                    int cmp = Bytes.compareTo(colA.getColumnFamily(), colB.getColumnFamily());
+                    if (cmp != 0) return cmp;
+                    if (colA.isColumnMap() || colB.isColumnMap()) {
+                        return (colA.isColumnMap() ? 1 : 0) - (colB.isColumnMap() ? 1 : 0);
+                    }
+                    return Bytes.compareTo(colA.getColumnName(), colB.getColumnName());
+                }
+            });
+
+        List<FamilyGroup> groups = new ArrayList<FamilyGroup>();
+        FamilyGroup group = null;
+        for (int index : byFamily) {
+            ColumnInfo column = columns.get(index);
+            if (group == null || !Bytes.equals(group.family_, column.getColumnFamily())) {
+                group = new FamilyGroup(column.getColumnFamily());
+                groups.add(group);
+            }
+            if (column.isColumnMap()) {
+                group.maps_.add(index);
+            } else {
+                group.scalars_.add(index);
+            }
+        }
+        groups_ = groups.toArray(new FamilyGroup[groups.size()]);
+    }
+
+    /**
+       Fills fields offset .. offset+columns.size()-1 of the tuple from the result. Scalar
+       columns missing from the result are set to null and take the newest version of the
+       cell; families always get a (possibly empty) bag of entries, or map.
+     */
+    public void decode(Result result, Tuple tuple, int offset) throws ExecException {
+        KeyValue[] cells = result.raw();
+        if (familyMaps_) {
+            decodeMaps(cells, tuple, offset);
+            return;
+        }
+        DataBag[] bags = new DataBag[columns_.size()];
+        for (int i = 0; i < columns_.size(); i++) {
+            if (columns_.get(i).isColumnMap()) {
+                bags[i] = bagFactory_.newDefaultBag();
+                tuple.set(offset + i, bags[i]);
+            } else {
+                tuple.set(offset + i, null);
+            }
+        }
+
+        if (cells == null) return;
+
+        int g = 0;
+        int s = 0;
+        KeyValue previous = null;
+        for (KeyValue kv : cells) {
+            boolean olderVersion = (previous != null && sameColumn(previous, kv));
+            previous = kv;
+            if (olderVersion && !versioned_) continue;
+
+            byte[] buffer = kv.getBuffer();
+            int familyOffset = kv.getFamilyOffset();
+            int familyLength = kv.getFamilyLength();
+            int cmp = -1;
+            while (g < groups_.length &&
+                   (cmp = Bytes.compareTo(groups_[g].family_, 0, groups_[g].family_.length, buffer, familyOffset, familyLength)) < 0) {
+                g++;
+                s = 0;
+            }
+            if (g == groups_.length) break;
+            if (cmp != 0) continue;
+
+            FamilyGroup group = groups_[g];
+            int qualifierOffset = kv.getQualifierOffset();
+            int qualifierLength = kv.getQualifierLength();
+
+            while (s < group.scalars_.size() &&
+                   compareQualifier(group.scalars_.get(s), buffer, qualifierOffset, qualifierLength) < 0) {
+                s++;
+            }
+            for (int t = s; !olderVersion && t < group.scalars_.size() &&
+                     compareQualifier(group.scalars_.get(t), buffer, qualifierOffset, qualifierLength) == 0; t++) {
+                int column = group.scalars_.get(t);
+                tuple.set(offset + column, typedValue(kv, columns_.get(column).getType(), true));
+            }
+
+            // We need to check against the prefix filter to see if this value should be
+            // included. We can't just rely on the server-side filter, since a user could
+            // specify multiple CF filters for the same CF.
+            for (int m : group.maps_) {
+                if (columns_.get(m).hasPrefixMatch(buffer, qualifierOffset, qualifierLength)) {
+                    bags[m].add(familyEntry(kv, columns_.get(m).getType()));
+                }
+            }
+        }
+    }
+
+    /**
+       decode for family maps. The same walk finds each family's run of matching cells, which
+       the prefix makes contiguous, and wraps it without decoding any value.
+     */
+    private void decodeMaps(KeyValue[] cells, Tuple tuple, int offset) throws ExecException {
+        int[] from = new int[columns_.size()];
+        int[] to = new int[columns_.size()];
+        for (int i = 0; i < columns_.size(); i++) {
+            tuple.set(offset + i, null);
+        }
+        if (cells == null) cells = new KeyValue[0];
+
+        int g = 0;
+        int s = 0;
+        KeyValue previous = null;
+        for (int i = 0; i < cells.length; i++) {
+            KeyValue kv = cells[i];
+            boolean olderVersion = (previous != null && sameColumn(previous, kv));
+            previous = kv;
+            if (olderVersion) continue;
+
+            byte[] buffer = kv.getBuffer();
+            int cmp = -1;
+            while (g < groups_.length &&
+                   (cmp = Bytes.compareTo(groups_[g].family_, 0, groups_[g].family_.length, buffer, kv.getFamilyOffset(), kv.getFamilyLength())) < 0) {
+                g++;
+                s = 0;
+            }
+            if (g == groups_.length) break;
+            if (cmp != 0) continue;
+
+            FamilyGroup group = groups_[g];
+            int qualifierOffset = kv.getQualifierOffset();
+            int qualifierLength = kv.getQualifierLength();
+            while (s < group.scalars_.size() &&
+                   compareQualifier(group.scalars_.get(s), buffer, qualifierOffset, qualifierLength) < 0) {
+                s++;
+            }
+            for (int t = s; t < group.scalars_.size() &&
+                     compareQualifier(group.scalars_.get(t), buffer, qualifierOffset, qualifierLength) == 0; t++) {
+                int column = group.scalars_.get(t);
+                tuple.set(offset + column, typedValue(kv, columns_.get(column).getType(), true));
+            }
+            for (int m : group.maps_) {
+                if (columns_.get(m).hasPrefixMatch(buffer, qualifierOffset, qualifierLength)) {
+                    if (from[m] == to[m]) from[m] = i;
+                    to[m] = i + 1;
+                }
+            }
+        }
+        for (int i = 0; i < columns_.size(); i++) {
+            if (columns_.get(i).isColumnMap()) {
+                tuple.set(offset + i, new FamilyMap(this, cells, from[i], to[i], columns_.get(i).getType()));
+            }
+        }
+    }
+
+    public int size() {
+        return columns_.size();
+    }
+
+    /**
+       Decodes just one column of the result, with the same semantics as decode. Cells are
+       found by binary search, so a column costs O(log n) plus the size of its family.
+     */
+    public Object decodeColumn(Result result, int column) throws ExecException {
+        ColumnInfo columnInfo = columns_.get(column);
+        KeyValue[] cells = result.raw();
+        if (!columnInfo.isColumnMap()) {
+            if (cells == null) return null;
+            int i = lowerBound(cells, columnInfo.getColumnFamily(), columnInfo.getColumnName());
+            if (i < cells.length && compareColumn(cells[i], columnInfo.getColumnFamily(), columnInfo.getColumnName()) == 0) {
+                return typedValue(cells[i], columnInfo.getType(), true);
+            }
+            return null;
+        }
+
+        if (cells == null) cells = new KeyValue[0];
+        DataBag bag = familyMaps_ ? null : bagFactory_.newDefaultBag();
+        byte[] family = columnInfo.getColumnFamily();
+        byte[] prefix = (columnInfo.getColumnPrefix() == null) ? new byte[0] : columnInfo.getColumnPrefix();
+        KeyValue previous = null;
+        int from = lowerBound(cells, family, prefix);
+        int i = from;
+        for (; i < cells.length; i++) {
+            KeyValue kv = cells[i];
+            byte[] buffer = kv.getBuffer();
+            if (Bytes.compareTo(family, 0, family.length, buffer, kv.getFamilyOffset(), kv.getFamilyLength()) != 0 ||
+                !columnInfo.hasPrefixMatch(buffer, kv.getQualifierOffset(), kv.getQualifierLength())) {
+                break;
+            }
+            if (familyMaps_) continue;
+            boolean olderVersion = (previous != null && sameColumn(previous, kv));
+            previous = kv;
+            if (olderVersion && !versioned_) continue;
+            bag.add(familyEntry(kv, columnInfo.getType()));
+        }
+        if (familyMaps_) return new FamilyMap(this, cells, from, i, columnInfo.getType());
+        return bag;
+    }
+
+    /**
+       A (qualifier, value) tuple for a cell of a column family, or (qualifier, timestamp,
+       value) when loading versions.
+     */
+    private Tuple familyEntry(KeyValue kv, byte type) throws ExecException {
+        Tuple entry = tupleFactory_.newTuple(versioned_ ? 3 : 2);
+        int field = 0;
+        entry.set(field++, Bytes.toString(kv.getBuffer(), kv.getQualifierOffset(), kv.getQualifierLength()));
+        if (versioned_) entry.set(field++, kv.getTimestamp());
+        entry.set(field, familyValue(kv, type));
+        return entry;
+    }
+
+    /**
+       The value of a cell of a column family.
+     */
+    Object familyValue(KeyValue kv, byte type) throws ExecException {
+        return typedValue(kv, type, false);
+    }
+
+    /**
+       The value of a cell as the given type. With emptyIsOne an empty value, which flags
+       are stored as, decodes as the type's 1 (see scalarValue).
+     */
+    private Object typedValue(KeyValue kv, byte type, boolean emptyIsOne) throws ExecException {
+        int length = kv.getValueLength();
+        if (type == DataType.BYTEARRAY) {
+            return emptyIsOne ? scalarValue(kv) : value(kv);
+        }
+        if (length == 0 && emptyIsOne) {
+            return one(type);
+        }
+        byte[] buffer = kv.getBuffer();
+        int offset = kv.getValueOffset();
+        try {
+            switch (type) {
+            case DataType.CHARARRAY:
+                return Bytes.toString(buffer, offset, length);
+            case DataType.INTEGER:
+                if (binary_ && length == Bytes.SIZEOF_INT) return Bytes.toInt(buffer, offset);
+                if (!binary_) {
+                    Long parsed = parseDecimal(buffer, offset, length);
+                    if (parsed != null && parsed == parsed.intValue()) return parsed.intValue();
+                }
+                return caster_.bytesToInteger(kv.getValue());
+            case DataType.LONG:
+                if (binary_ && length == Bytes.SIZEOF_LONG) return Bytes.toLong(buffer, offset);
+                if (!binary_) {
+                    Long parsed = parseDecimal(buffer, offset, length);
+                    if (parsed != null) return parsed;
+                }
+                return caster_.bytesToLong(kv.getValue());
+            case DataType.FLOAT:
+                if (binary_ && length == Bytes.SIZEOF_FLOAT) return Bytes.toFloat(buffer, offset);
+                return caster_.bytesToFloat(kv.getValue());
+            case DataType.DOUBLE:
+                if (binary_ && length == Bytes.SIZEOF_DOUBLE) return Bytes.toDouble(buffer, offset);
+                return caster_.bytesToDouble(kv.getValue());
+            default:
+                throw new ExecException("Cannot decode columns of type " + DataType.findTypeName(type));
+            }
+        } catch (ExecException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ExecException(e);
+        }
+    }
+
+    private static Object one(byte type) {
+        switch (type) {
+        case DataType.CHARARRAY: return "1";
+        case DataType.INTEGER:   return Integer.valueOf(1);
+        case DataType.LONG:      return Long.valueOf(1);
+        case DataType.FLOAT:     return Float.valueOf(1);
+        default:                 return Double.valueOf(1);
+        }
+    }
+
+    /**
+       Parses an optionally signed run of ASCII digits. Returns null for anything else, and
+       for runs long enough that they might overflow a long, leaving those to the caster.
+     */
+    static Long parseDecimal(byte[] buffer, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        boolean negative = false;
+        if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = (buffer[i] == '-');
+            i++;
+        }
+        if (i == end || end - i > 18) return null;
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) return null;
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+       Index of the first cell whose (family, qualifier) is not less than the one given.
+     */
+    private static int lowerBound(KeyValue[] cells, byte[] family, byte[] qualifier) {
+        int low = 0;
+        int high = cells.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareColumn(cells[mid], family, qualifier) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compareColumn(KeyValue kv, byte[] family, byte[] qualifier) {
+        byte[] buffer = kv.getBuffer();
+        int cmp = Bytes.compareTo(buffer, kv.getFamilyOffset(), kv.getFamilyLength(), family, 0, family.length);
+        if (cmp != 0) return cmp;
+        return Bytes.compareTo(buffer, kv.getQualifierOffset(), kv.getQualifierLength(), qualifier, 0, qualifier.length);
+    }
+
+    private int compareQualifier(int column, byte[] buffer, int offset, int length) {
+        byte[] name = columns_.get(column).getColumnName();
+        return Bytes.compareTo(name, 0, name.length, buffer, offset, length);
+    }
+
+    static boolean sameColumn(KeyValue a, KeyValue b) {
+        return Bytes.compareTo(a.getBuffer(), a.getFamilyOffset(), a.getFamilyLength(),
+                               b.getBuffer(), b.getFamilyOffset(), b.getFamilyLength()) == 0 &&
+            Bytes.compareTo(a.getBuffer(), a.getQualifierOffset(), a.getQualifierLength(),
+                            b.getBuffer(), b.getQualifierOffset(), b.getQualifierLength()) == 0;
+    }
+
+    /**
+       A scalar cell with an empty value loads as "1", so that columns used as flags are
+       distinguishable from missing ones.
+     */
+    static DataByteArray scalarValue(KeyValue kv) {
+        return (kv.getValueLength() == 0) ? new DataByteArray(ONE) : value(kv);
+    }
+
+    static DataByteArray value(KeyValue kv) {
+        int valueOffset = kv.getValueOffset();
+        return new DataByteArray(kv.getBuffer(), valueOffset, valueOffset + kv.getValueLength());
+    }
+
+    /**
+       The columns that share one column family, as indexes into the column list. Scalars are
+       sorted by qualifier.
+     */
+    private static class FamilyGroup {
+        final byte[] family_;
+        final List<Integer> scalars_ = new ArrayList<Integer>();
+        final List<Integer> maps_ = new ArrayList<Integer>();
+
+        FamilyGroup(byte[] family) { family_ = family; }
+    }
+}
@@ -0,0 +1,70 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+   Salted row keys: every logical key is stored behind a one byte bucket prefix computed from
+   a hash of the key, so that writes of consecutive keys spread over as many regions as there
+   are buckets. A logical key range then lives in one physical range per bucket.
+ */
+public class Salt {
+
+    public static final int MAX_BUCKETS = 256;
+
+    private Salt() {
+    }
+
+    public static int bucket(byte[] key, int buckets) {
+        return (Bytes.hashCode(key) & 0x7fffffff) % buckets;
+    }
+
+    public static byte[] salt(byte[] key, int buckets) {
+        return Bytes.add(new byte[] {(byte) bucket(key, buckets)}, key);
+    }
+
+    public static byte[] unsalt(byte[] key) {
+        return Bytes.tail(key, key.length - 1);
+    }
+
+    /**
+       Compares two salted keys by their logical keys alone.
+     */
+    public static int compareUnsalted(byte[] a, byte[] b) {
+        return Bytes.compareTo(a, 1, a.length - 1, b, 1, b.length - 1);
+    }
+
+    /**
+       The physical range holding the part of a logical range that falls in one bucket.
+     */
+    public static KeyRange bucketRange(int bucket, KeyRange logical) {
+        byte[] prefix = new byte[] {(byte) bucket};
+        byte[] start = Bytes.add(prefix, logical.getStart());
+        byte[] stop;
+        if (logical.getStop().length > 0) {
+            stop = Bytes.add(prefix, logical.getStop());
+        } else if (bucket + 1 < MAX_BUCKETS) {
+            stop = new byte[] {(byte) (bucket + 1)};
+        } else {
+            stop = HConstants.EMPTY_END_ROW;
+        }
+        return new KeyRange(start, stop);
+    }
+
+    public static List<KeyRange> bucketRanges(KeyRange logical, int buckets) {
+        List<KeyRange> ranges = new ArrayList<KeyRange>(buckets);
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            ranges.add(bucketRange(bucket, logical));
+        }
+        return ranges;
+    }
+
+    public static void checkBuckets(int buckets) {
+        if (buckets < 1 || buckets > MAX_BUCKETS) {
+            throw new IllegalArgumentException("Number of salt buckets must be between 1 and " + MAX_BUCKETS + ", not " + buckets);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+/**
+   A logical key range [startRow, stopRow) of a salted table, read as one physical range per
+   bucket and merged back into logical key order.
+ */
+public class SaltedSplit extends InputSplit implements Writable, Comparable<SaltedSplit> {
+
+    private byte[] tableName_;
+    private byte[] startRow_;
+    private byte[] stopRow_;
+    private int buckets_;
+    private String location_;
+
+    public SaltedSplit() {
+        this(new byte[0], new byte[0], new byte[0], 1, "");
+    }
+
+    public SaltedSplit(byte[] tableName, byte[] startRow, byte[] stopRow, int buckets, String location) {
+        tableName_ = tableName;
+        startRow_ = startRow;
+        stopRow_ = stopRow;
+        buckets_ = buckets;
+        location_ = location;
+    }
+
+    public byte[] getTableName() { return tableName_; }
+    public byte[] getStartRow()  { return startRow_; }
+    public byte[] getStopRow()   { return stopRow_; }
+    public int getBuckets()      { return buckets_; }
+
+    public KeyRange getRange() {
+        return new KeyRange(startRow_, stopRow_);
+    }
+
+    @Override
+    public long getLength() {
+        return 0;
+    }
+
+    @Override
+    public String[] getLocations() {
+        return new String[] {location_};
+    }
+
+    public int compareTo(SaltedSplit other) {
+        return Bytes.compareTo(startRow_, other.startRow_);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        Bytes.writeByteArray(out, tableName_);
+        Bytes.writeByteArray(out, startRow_);
+        Bytes.writeByteArray(out, stopRow_);
+        out.writeInt(buckets_);
+        out.writeUTF(location_);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        tableName_ = Bytes.readByteArray(in);
+        startRow_ = Bytes.readByteArray(in);
+        stopRow_ = Bytes.readByteArray(in);
+        buckets_ = in.readInt();
+        location_ = in.readUTF();
+    }
+
+    @Override
+    public String toString() {
+        return location_ + ":[" + Bytes.toStringBinary(startRow_) + ", " + Bytes.toStringBinary(stopRow_) +
+            ") over " + buckets_ + " salt buckets";
+    }
+}
@@ -0,0 +1,207 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.util.FSUtils;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.io.NullableTuple;
+
+/**
+   A snapshot of the tuples a load produced, kept on the HDFS so that repeating the same load
+   reads the snapshot instead of the table. Each snapshot lives in its own directory named by
+   the MD5 of everything that determines the load's output, including a watermark of when the
+   table last changed on disk:
+   <pre>
+   cacheDir/signature/_splits           number of input splits of the run that wrote it
+   cacheDir/signature/part-i-j          tuples of one split, as a block compressed SequenceFile
+   cacheDir/signature/_COMPLETE         written once every split has its part
+   </pre>
+   Parts are written to _temporary by each task attempt and renamed into place when the split
+   has been read to its end, so failed or speculative attempts never leave partial parts.
+ */
+class ScanCache {
+    private static final Log LOG = LogFactory.getLog(ScanCache.class);
+
+    static final String SPLITS_FILE = "_splits";
+    static final String COMPLETE_FILE = "_COMPLETE";
+    static final String PART_PREFIX = "part-";
+    private static final String TEMP_DIR = "_temporary";
+
+    private ScanCache() {
+    }
+
+    /**
+       The snapshot directory for a load described by the given strings.
+     */
+    static Path snapshotDir(Path cacheDir, String... description) {
+        StringBuilder text = new StringBuilder();
+        for (String part : description) {
+            text.append(part == null ? "" : part).append('\0');
+        }
+        return new Path(cacheDir, MD5Hash.digest(text.toString()).toString());
+    }
+
+    /**
+       When the table's files last changed: the newest modification time among its directory,
+       its region directories and their family directories, which change whenever a store
+       file is flushed, compacted, bulk loaded or removed. Writes still in the memstore don't
+       count until they are flushed.
+     */
+    static long watermark(Configuration conf, String tableName) throws IOException {
+        Path tableDir = new Path(FSUtils.getRootDir(conf), tableName);
+        FileSystem fs = tableDir.getFileSystem(conf);
+        if (!fs.exists(tableDir)) {
+            throw new IOException("No directory " + tableDir + " for table " + tableName);
+        }
+        long newest = fs.getFileStatus(tableDir).getModificationTime();
+        for (FileStatus region : fs.listStatus(tableDir)) {
+            newest = Math.max(newest, region.getModificationTime());
+            if (!region.isDir()) continue;
+            for (FileStatus family : fs.listStatus(region.getPath())) {
+                newest = Math.max(newest, family.getModificationTime());
+            }
+        }
+        return newest;
+    }
+
+    /**
+       Whether the snapshot has a part for every split, marking it complete the first time
+       that is found to be so.
+     */
+    static boolean isComplete(Path dir, Configuration conf) throws IOException {
+        FileSystem fs = dir.getFileSystem(conf);
+        if (fs.exists(new Path(dir, COMPLETE_FILE))) return true;
+        Path splitsFile = new Path(dir, SPLITS_FILE);
+        if (!fs.exists(splitsFile)) return false;
+
+        int splits;
+        FSDataInputStream in = fs.open(splitsFile);
+        try {
+            splits = in.readInt();
+        } finally {
+            in.close();
+        }
+        FileStatus[] parts = fs.globStatus(parts(dir));
+        int found = (parts == null) ? 0 : parts.length;
+        if (found < splits) {
+            LOG.info("Scan cache " + dir + " has " + found + " of " + splits + " parts");
+            return false;
+        }
+        fs.create(new Path(dir, COMPLETE_FILE), true).close();
+        return true;
+    }
+
+    static Path parts(Path dir) {
+        return new Path(dir, PART_PREFIX + "*");
+    }
+
+    /**
+       Wraps an input format so that the number of splits it hands out is recorded in the
+       snapshot directory, for isComplete to check the parts against. Parts left by an earlier,
+       unfinished run are removed first: its splits may have cut the table differently, for
+       instance after regions split under a pinned -cacheWatermark, and mixing the two runs'
+       parts would overlap some rows and miss others.
+     */
+    static InputFormat recordingSplits(InputFormat inputFormat, Path dir) {
+        return new SplitRecordingInputFormat(inputFormat, dir);
+    }
+
+    private static class SplitRecordingInputFormat<K, V> extends InputFormat<K, V> {
+        private final InputFormat<K, V> inputFormat_;
+        private final Path dir_;
+
+        SplitRecordingInputFormat(InputFormat<K, V> inputFormat, Path dir) {
+            inputFormat_ = inputFormat;
+            dir_ = dir;
+        }
+
+        @Override
+        public List<InputSplit> getSplits(JobContext context) throws IOException, InterruptedException {
+            List<InputSplit> splits = inputFormat_.getSplits(context);
+            Configuration conf = context.getConfiguration();
+            FileSystem fs = dir_.getFileSystem(conf);
+            FileStatus[] stale = fs.globStatus(parts(dir_));
+            if (stale != null && stale.length > 0) {
+                LOG.info("Removing " + stale.length + " parts of an unfinished run from scan cache " + dir_);
+                for (FileStatus part : stale) {
+                    fs.delete(part.getPath(), false);
+                }
+            }
+            fs.delete(new Path(dir_, TEMP_DIR), true);
+            fs.mkdirs(dir_);
+            FSDataOutputStream out = fs.create(new Path(dir_, SPLITS_FILE), true);
+            try {
+                out.writeInt(splits.size());
+            } finally {
+                out.close();
+            }
+            return splits;
+        }
+
+        @Override
+        public RecordReader<K, V> createRecordReader(InputSplit split, TaskAttemptContext context)
+        throws IOException, InterruptedException {
+            return inputFormat_.createRecordReader(split, context);
+        }
+    }
+
+    /**
+       Writes the tuples of one split to a temporary file of this task attempt.
+     */
+    static class Writer {
+        private final FileSystem fs_;
+        private final Path temp_;
+        private final Path part_;
+        private final SequenceFile.Writer writer_;
+        private final TupleFactory tupleFactory_ = TupleFactory.getInstance();
+
+        Writer(Path dir, String partName, Configuration conf) throws IOException {
+            fs_ = dir.getFileSystem(conf);
+            part_ = new Path(dir, PART_PREFIX + partName);
+            temp_ = new Path(new Path(dir, TEMP_DIR), conf.get("mapred.task.id", "local") + "-" + partName);
+            writer_ = SequenceFile.createWriter(fs_, conf, temp_, NullWritable.class, NullableTuple.class,
+                                                SequenceFile.CompressionType.BLOCK);
+        }
+
+        /**
+           Appends a copy of the tuple, so that lazily decoded tuples are stored decoded.
+         */
+        void append(Tuple tuple) throws IOException {
+            writer_.append(NullWritable.get(), new NullableTuple(tupleFactory_.newTuple(tuple.getAll())));
+        }
+
+        /**
+           Moves the finished part into place, unless another attempt got there first.
+         */
+        void commit() throws IOException {
+            writer_.close();
+            if (!fs_.rename(temp_, part_)) {
+                LOG.info("Scan cache part " + part_ + " already written, discarding " + temp_);
+                fs_.delete(temp_, false);
+            }
+        }
+
+        void abort() throws IOException {
+            writer_.close();
+            fs_.delete(temp_, false);
+        }
+    }
+}
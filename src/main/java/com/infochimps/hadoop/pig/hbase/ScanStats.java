@@ -0,0 +1,101 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.pig.tools.pigstats.PigStatusReporter;
+
+/**
+   Running totals for the scan of one split, published as Hadoop counters through the
+   PigStatusReporter. Counts accumulate locally and are pushed every FLUSH_ROWS rows and on
+   flush(), so the per-row cost is a few additions. Times are kept in nanoseconds and
+   reported in milliseconds.
+ */
+class ScanStats {
+
+    static enum Counter { ROWS, CELLS, BYTES, SCANNER_NEXT_CALLS, SCANNER_BLOCKED_MILLIS, PREFETCH_WAIT_MILLIS, DECODE_MILLIS };
+
+    /**
+       A record reader that keeps stats, so that the loader can add the time it spends
+       decoding the reader's rows to them.
+     */
+    interface Source {
+        /** The stats of the split being read, or null if there is none. */
+        ScanStats getStats();
+    }
+
+    static final int FLUSH_ROWS = 1000;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final long[] totals_ = new long[Counter.values().length];
+    private final long[] pending_ = new long[Counter.values().length];
+
+    synchronized void add(Counter counter, long amount) {
+        totals_[counter.ordinal()] += amount;
+        pending_[counter.ordinal()] += amount;
+    }
+
+    /**
+       Counts one row handed to Pig, flushing every FLUSH_ROWS rows.
+     */
+    void addRow(Result result) {
+        add(Counter.ROWS, 1);
+        add(Counter.CELLS, result.size());
+        add(Counter.BYTES, bytes(result));
+        if (get(Counter.ROWS) % FLUSH_ROWS == 0) flush();
+    }
+
+    /**
+       The serialized size of a row's cells.
+     */
+    static long bytes(Result result) {
+        long bytes = 0;
+        KeyValue[] cells = result.raw();
+        if (cells == null) return 0;
+        for (KeyValue kv : cells) {
+            bytes += kv.getLength();
+        }
+        return bytes;
+    }
+
+    synchronized long get(Counter counter) {
+        return totals_[counter.ordinal()];
+    }
+
+    synchronized long getMillis(Counter counter) {
+        return totals_[counter.ordinal()] / NANOS_PER_MILLI;
+    }
+
+    /**
+       Pushes everything counted since the last flush. Sub-millisecond remainders of the
+       timers are carried over to the next flush.
+     */
+    synchronized void flush() {
+        PigStatusReporter reporter = PigStatusReporter.getInstance();
+        if (reporter == null) return;
+        for (Counter counter : Counter.values()) {
+            long amount = pending_[counter.ordinal()];
+            if (isTimer(counter)) {
+                amount /= NANOS_PER_MILLI;
+                pending_[counter.ordinal()] -= amount * NANOS_PER_MILLI;
+            } else {
+                pending_[counter.ordinal()] = 0;
+            }
+            if (amount == 0) continue;
+            org.apache.hadoop.mapreduce.Counter hadoopCounter = reporter.getCounter(counter);
+            if (hadoopCounter != null) hadoopCounter.increment(amount);
+        }
+    }
+
+    private static boolean isTimer(Counter counter) {
+        return counter == Counter.SCANNER_BLOCKED_MILLIS || counter == Counter.PREFETCH_WAIT_MILLIS ||
+            counter == Counter.DECODE_MILLIS;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return get(Counter.ROWS) + " rows, " + get(Counter.CELLS) + " cells, " + get(Counter.BYTES) + " bytes, " +
+            get(Counter.SCANNER_NEXT_CALLS) + " scanner next() calls, " + getMillis(Counter.SCANNER_BLOCKED_MILLIS) +
+            " ms blocked in the scanner, " + getMillis(Counter.PREFETCH_WAIT_MILLIS) + " ms waiting for prefetched rows, " +
+            getMillis(Counter.DECODE_MILLIS) + " ms decoding";
+    }
+}
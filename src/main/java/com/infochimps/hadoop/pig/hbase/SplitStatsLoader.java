@@ -0,0 +1,114 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.io.IOException;
+
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.hbase.mapreduce.TableSplit;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.pig.ResourceSchema;
+import org.apache.pig.ResourceSchema.ResourceFieldSchema;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+/**
+ * Takes an inventory of an HBase table: one tuple per input split, giving its key range, the
+ * region server it was read from, and how many rows and cells the split holds in the given
+ * columns, along with the first and last row keys actually present.
+ * <pre>{@code
+ * stats = LOAD 'hbase://tiles'
+ *         USING com.infochimps.hadoop.pig.hbase.SplitStatsLoader('info: data:');
+ * total = FOREACH (GROUP stats ALL) GENERATE SUM(stats.rows), SUM(stats.cells);
+ * }</pre>
+ * The splits are scanned as with -keysOnly -countCells, so values never leave the region
+ * servers, and every map task counts its split in parallel. The options are those of
+ * StaticFamilyStorage; key bounds, -ranges and -where narrow what is counted. The split's
+ * bounds are null when it combines several key ranges (-maxTableSplits, -ranges), since the
+ * gaps between them were not read; its location is null too when Pig has combined splits
+ * into one task.
+ */
+public class SplitStatsLoader extends StaticFamilyStorage {
+
+    private final TupleFactory tupleFactory_ = TupleFactory.getInstance();
+    private InputSplit split_;
+    private boolean done_;
+
+    public SplitStatsLoader(String columnList) throws ParseException, IOException {
+        this(columnList, "");
+    }
+
+    public SplitStatsLoader(String columnList, String optString) throws ParseException, IOException {
+        super(columnList, optString + " -keysOnly -countCells");
+    }
+
+    @Override
+    public void prepareToRead(RecordReader reader, PigSplit split) throws IOException {
+        super.prepareToRead(reader, split);
+        split_ = (split.getNumPaths() == 1) ? split.getWrappedSplit() : null;
+        done_ = false;
+    }
+
+    /**
+       Reads the whole split and returns its single summary tuple.
+     */
+    @Override
+    public Tuple getNext() throws IOException {
+        if (done_) return null;
+        done_ = true;
+
+        long rows = 0;
+        long cells = 0;
+        DataByteArray firstRow = null;
+        DataByteArray lastRow = null;
+        Tuple keyTuple;
+        while ((keyTuple = super.getNext()) != null) {
+            rows++;
+            cells += (Long) keyTuple.get(1);
+            lastRow = (DataByteArray) keyTuple.get(0);
+            if (firstRow == null) firstRow = lastRow;
+        }
+
+        Tuple stats = tupleFactory_.newTuple(7);
+        if (split_ instanceof TableSplit) {
+            TableSplit split = (TableSplit) split_;
+            stats.set(0, new DataByteArray(split.getStartRow()));
+            stats.set(1, new DataByteArray(split.getEndRow()));
+            stats.set(2, split.getRegionLocation());
+        } else if (split_ instanceof CombinedTableSplit) {
+            // Its ranges can leave gaps that were never read, so it has no bounds of its own
+            stats.set(2, ((CombinedTableSplit) split_).getRegionLocation());
+        } else if (split_ instanceof SaltedSplit) {
+            SaltedSplit split = (SaltedSplit) split_;
+            stats.set(0, new DataByteArray(split.getStartRow()));
+            stats.set(1, new DataByteArray(split.getStopRow()));
+            stats.set(2, split.getLocations()[0]);
+        }
+        stats.set(3, rows);
+        stats.set(4, cells);
+        stats.set(5, firstRow);
+        stats.set(6, lastRow);
+        return stats;
+    }
+
+    @Override
+    public ResourceSchema getSchema(String location, Job job) throws IOException {
+        ResourceSchema schema = new ResourceSchema();
+        schema.setFields(new ResourceFieldSchema[] {
+                field("start_row", DataType.BYTEARRAY),
+                field("stop_row", DataType.BYTEARRAY),
+                field("location", DataType.CHARARRAY),
+                field("rows", DataType.LONG),
+                field("cells", DataType.LONG),
+                field("first_row", DataType.BYTEARRAY),
+                field("last_row", DataType.BYTEARRAY)});
+        return schema;
+    }
+
+    private static ResourceFieldSchema field(String name, byte type) {
+        return new ResourceFieldSchema().setName(name).setType(type);
+    }
+}
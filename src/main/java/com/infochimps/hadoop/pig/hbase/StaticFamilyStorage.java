@@ -18,17 +18,19 @@
 package com.infochimps.hadoop.pig.hbase;
 
 import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.DataInput;
-import java.io.DataOutput;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.HashMap;
 import java.util.Properties;
+import java.util.Set;
+import java.util.HashSet;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -39,6 +41,7 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
@@ -49,16 +52,19 @@ import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.BinaryComparator;
 import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
 import org.apache.hadoop.hbase.filter.FilterList;
-import org.apache.hadoop.hbase.filter.RowFilter;
 import org.apache.hadoop.hbase.filter.FamilyFilter;
 import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
 import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
 import org.apache.hadoop.hbase.mapreduce.TableMapReduceUtil;
+import org.apache.hadoop.hbase.mapreduce.TableRecordReader;
 import org.apache.hadoop.hbase.mapreduce.TableSplit;
 import org.apache.hadoop.hbase.util.Base64;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.mapreduce.InputFormat;
 import org.apache.hadoop.mapreduce.InputSplit;
@@ -66,13 +72,19 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.OutputFormat;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.pig.Expression;
+import org.apache.pig.IndexableLoadFunc;
 import org.apache.pig.LoadCaster;
 import org.apache.pig.LoadFunc;
+import org.apache.pig.LoadMetadata;
 import org.apache.pig.LoadPushDown;
 import org.apache.pig.LoadStoreCaster;
 import org.apache.pig.OrderedLoadFunc;
 import org.apache.pig.ResourceSchema;
 import org.apache.pig.ResourceSchema.ResourceFieldSchema;
+import org.apache.pig.ResourceStatistics;
 import org.apache.pig.StoreFuncInterface;
 import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
 import org.apache.pig.builtin.Utf8StorageConverter;
@@ -83,6 +95,7 @@ import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
 import org.apache.pig.data.BagFactory;
 import org.apache.pig.impl.PigContext;
+import org.apache.pig.impl.io.NullableTuple;
 import org.apache.pig.impl.logicalLayer.FrontendException;
 import org.apache.pig.impl.util.Utils;
 import org.apache.pig.impl.util.ObjectSerializer;
@@ -123,23 +136,38 @@ import com.google.common.collect.Lists;
  * map to a column family name. In the above examples, the <code>friends</code>
  * column family data from <code>SampleTable</code> will be written to a
  * <code>buddies</code> column family in the <code>SampleTableCopy</code> table.
- * 
+ * <P>
+ * A table loaded with -loadKey can be the right hand side of a merge join on its row key,
+ * against any relation sorted by the same key; the join seeks straight to each key range:
+ * <pre>{@code
+ * joined = JOIN sorted_points BY tile_id, tiles BY tile_id USING 'merge';
+ * }</pre>
  */
-public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface, LoadPushDown, OrderedLoadFunc {
+public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface, LoadPushDown, LoadMetadata, OrderedLoadFunc, IndexableLoadFunc {
     
     private static final Log LOG = LogFactory.getLog(StaticFamilyStorage.class);
 
     private final static String STRING_CASTER = "UTF8StorageConverter";
     private final static String BYTE_CASTER = "HBaseBinaryConverter";
     private final static String CASTER_PROPERTY = "pig.hbase.caster";
-    private final static String ASTERISK = "*";
     private final static String COLON = ":";
-    private final static String ONE = "1";
     
     private List<ColumnInfo> columnInfo_ = Lists.newArrayList();
+    private ResultDecoder decoder_;
+    private byte[] lastRow_;
+    private int chunkIndex_;
+    private final ScanStats decodeStats_ = new ScanStats();
+    private long decodedRows_ = 0;
     private HTable m_table;
-    private Configuration m_conf;
+    private HTable seekTable_;
+    private RecordReader seekReader_;
+    protected Configuration m_conf;
     private RecordReader reader;
+    private final String description_;
+    private transient Path cacheDir_;
+    private transient boolean cacheHit_ = false;
+    private transient ScanCache.Writer cacheWriter_;
+    private transient int cacheParts_ = 0;
     private RecordWriter writer;
     private HBaseTableOutputFormat outputFormat = null;    
     private Scan scan;
@@ -150,8 +178,18 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
     private final static CommandLineParser parser_ = new GnuParser();
     
     private boolean loadRowKey_;
+    private boolean loadChunkIndex_;
+    private final boolean lazy_;
+    private final boolean familyMaps_;
+    private final boolean keysOnly_;
+    private final boolean countCells_;
     private final long limit_;
+    private final double sample_;
     private final int maxTableSplits_;
+    protected final long targetSplitBytes_;
+    private final int prefetch_;
+    protected final int salt_;
+    protected final boolean saltOrdered_;
     private final int tsField_;
     private final int caching_;
     private final String hbaseConfig_;
@@ -160,6 +198,8 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
     protected transient byte[] gte_;
     protected transient byte[] lt_;
     protected transient byte[] lte_;
+    protected transient List<KeyRange> keyRanges_;
+    private transient WhereClause where_;
 
     private LoadCaster caster_;
 
@@ -173,14 +213,36 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
     
     private static void populateValidOptions() { 
         validOptions_.addOption("loadKey", false, "Load Key");
+        validOptions_.addOption("keysOnly", false, "Load only the row keys of rows that have any of the columns; no values are sent");
+        validOptions_.addOption("countCells", false, "With -keysOnly, follow each key with the number of cells the row has in the columns");
+        validOptions_.addOption("lazy", false, "Decode each column only when it is first accessed");
         validOptions_.addOption("gt", true, "Records must be greater than this value " +
                 "(binary, double-slash-escaped)");
         validOptions_.addOption("lt", true, "Records must be less than this value (binary, double-slash-escaped)");   
         validOptions_.addOption("gte", true, "Records must be greater than or equal to this value");
         validOptions_.addOption("lte", true, "Records must be less than or equal to this value");
         validOptions_.addOption("caching", true, "Number of rows scanners should cache");
+        validOptions_.addOption("cachingBytes", true, "Adapt scanner caching as rows are read so that each round trip returns about this many bytes");
+        validOptions_.addOption("cachingMillis", true, "Adapt scanner caching as rows are read so that each round trip takes at most about this many ms");
+        validOptions_.addOption("prefetch", true, "Number of batches of -caching rows to read ahead on a background thread (0 disables prefetching)");
+        validOptions_.addOption("batch", true, "Maximum number of cells per tuple. Wide rows are split into several tuples, with a chunk index following the row key");
+        validOptions_.addOption("ranges", true, "Comma separated start:stop key ranges to load (binary, double-slash-escaped)");
+        validOptions_.addOption("prefixes", true, "Comma separated key prefixes to load (binary, double-slash-escaped)");
+        validOptions_.addOption("rangeFile", true, "File of key ranges to load, one tab separated start and stop, or one prefix, per line");
+        validOptions_.addOption("where", true, "Predicate on cell values evaluated by the region servers, e.g. info:_type==school&&info:zoom>=long(12)");
+        validOptions_.addOption("cacheDir", true, "HDFS directory of scan caches. The first load writes its tuples there, identical loads of an unchanged table read them back");
+        validOptions_.addOption("cacheWatermark", true, "With -cacheDir, the version of the table's data to cache, in place of the latest store file change");
         validOptions_.addOption("limit", true, "Per-region limit");
+        validOptions_.addOption("sample", true, "Fraction of rows to load, spread evenly over the key space of every split");
+        validOptions_.addOption("maxVersions", true, "Number of versions of each cell to load. Column families then load as bags of (qualifier, timestamp, value)");
+        validOptions_.addOption("familyMaps", false, "Load column families as maps of qualifier to value, decoded on lookup, instead of bags");
+        validOptions_.addOption("minTimestamp", true, "Only load cells written at or after this timestamp (ms)");
+        validOptions_.addOption("maxTimestamp", true, "Only load cells written before this timestamp (ms)");
         validOptions_.addOption("maxTableSplits", true, "Input splits (one per region) are combined until the total number of splits is less than maxTableSplits. A good heuristic is num_hadoop_machines*min((max_zookeeper_connections/max_map_tasks_per_machine),(max_zookeeper_connections/max_reduce_tasks_per_machine))");
+        validOptions_.addOption("orderedSplits", false, "Combine only adjacent regions, so that combined splits can be ordered by key, as for the left side of a merge join");
+        validOptions_.addOption("targetSplitBytes", true, "Regions whose store files are larger than this many bytes are scanned by several map tasks, each covering an equal slice of the region's key range");
+        validOptions_.addOption("salt", true, "Row keys are stored behind a one byte hash bucket prefix, with this many buckets. Loads read every bucket and strip the prefix; stores add it");
+        validOptions_.addOption("saltOrdered", false, "With -salt, merge the buckets so that each map task sees its rows in key order");
         validOptions_.addOption("timestamp_field", true, "Zero based index of the field to use as the timestamp");
         validOptions_.addOption("config", true, "Full path to local hbase-site.xml");
         validOptions_.addOption("caster", true, "Caster to use for converting values. A class name, " +
@@ -200,7 +262,11 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
      *        of the number of tokens in <code>columnList</code>. Items in the
      *        tuple will be scalar values when a full column descriptor is
      *        specified, or a bag of column descriptors to values when a column
-     *        family is specified.
+     *        family is specified. Ending a column with a type, as in
+     *        <code>info:age#int</code>, declares it in the schema and decodes
+     *        values (family values, for a family) straight to that type with
+     *        the caster; bytearray, chararray, int, long, float and double are
+     *        understood.
      *
      * @throws ParseException when unable to parse arguments
      * @throws IOException 
@@ -214,29 +280,94 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
      * @param columnList
      * @param optString Loader options. Known options:<ul>
      * <li>-loadKey=(true|false)  Load the row key as the first column
+     * <li>-keysOnly  load just the key of every row that has any of the columns, as (key). Region servers
+     *     send one value-less cell per row, so counting rows or listing keys never moves the values
+     * <li>-countCells  with -keysOnly, load (key, cells) with the row's number of cells in the columns; all
+     *     of them are sent, still without values
+     * <li>-lazy  decode a column only when it is first read; rows dropped by a FILTER on one column skip the rest
      * <li>-gt=minKeyVal
      * <li>-lt=maxKeyVal 
      * <li>-gte=minKeyVal
      * <li>-lte=maxKeyVal
+     * <li>-ranges=start:stop,...  load only these key ranges, each split at region boundaries into its own scan;
+     *     either side of a range may be empty. Ranges that overlap are merged, and the scans of one region
+     *     are read by a single task
+     * <li>-prefixes=prefix,...  load only the keys starting with one of these prefixes
+     * <li>-rangeFile=path  read more ranges from a file on the HDFS, one per line: a start and stop key
+     *     separated by a tab, or a single prefix. Any of the three may be combined with each other and
+     *     with -gt/-lt style bounds, which clip every range
+     * <li>-where=predicate  only load rows whose cells match, testing them on the region servers so other
+     *     rows never leave them. Comparisons are family:qualifier==literal (or !=, &lt;, &lt;=, &gt;, &gt;=),
+     *     combined with &amp;&amp;, || and parentheses, without spaces; see WhereClause for literals.
+     *     Rows missing the column don't match. Not allowed with -batch
+     * <li>-cacheDir=path  keep the tuples of this load on the HDFS under path, in a directory named by a hash
+     *     of the table, columns, options, scan and the time the table's store files last changed. Running the
+     *     same load again, before the table changes, reads them from there without touching HBase. Writes
+     *     still in the memstore don't count as changes until they are flushed; old directories can be deleted
+     *     at will. Such a load can't be the left side of a merge join
+     * <li>-cacheWatermark=version  with -cacheDir, use this instead of the store file changes, e.g. the date
+     *     of the nightly load
      * <li>-limit=numRowsPerRegion max number of rows to retrieve per region
+     * <li>-sample=fraction  load about this fraction of the rows, in short runs spread across each
+     *     split's key range; the rows in between are skipped by restarting the scanner past them.
+     *     Sampling turns off -prefetch
+     * <li>-maxVersions=numVersions  load up to this many versions of each cell; column families
+     *     then load as bags of (qualifier, timestamp, value)
+     * <li>-familyMaps  load column families as maps of qualifier to value, the shape putNext stores.
+     *     A map is a view over the row's cells: looking up a qualifier is a binary search, and only
+     *     the values read are decoded. Not allowed with -maxVersions
+     * <li>-minTimestamp=ms, -maxTimestamp=ms  only load cells with minTimestamp &lt;= timestamp &lt; maxTimestamp.
+     *     Region servers skip store files entirely outside the window.
      * <li>-caching=numRows  number of rows to cache (faster scans, more memory).
+     * <li>-batch=numCells  return at most this many cells per tuple. A row wider than that comes back
+     *     as several consecutive tuples, and a zero-based chunk index field follows the row key
+     * <li>-cachingBytes=bytes, -cachingMillis=ms  adapt the number of rows per scanner round trip to the rows
+     *     actually read, so that a round trip returns about cachingBytes and takes no more than about
+     *     cachingMillis. Scans start at 10 rows (or -caching, if smaller) and reopen the scanner when the
+     *     best size changes by more than half. No effect with -batch or -sample
+     * <li>-prefetch=numBatches  read this many batches of cached rows ahead on a background thread
+     * <li>-targetSplitBytes=bytes  subdivide regions larger than this into several splits
+     * <li>-orderedSplits  when -maxTableSplits combines regions, combine only runs of adjacent ones
+     *     rather than packing each region server's regions together. Needed to use the load as the
+     *     left side of a merge join once regions are combined
+     * <li>-salt=numBuckets  row keys carry a one byte bucket prefix, (hash(key) &amp; 0x7fffffff) % numBuckets.
+     *     Stores add it; loads scan each bucket's share of the key range and strip it again
+     * <li>-saltOrdered  with -salt, merge the buckets back so rows load in key order
      * </ul>
      * @throws ParseException 
      * @throws IOException 
      */
     public StaticFamilyStorage(String columnList, String optString) throws ParseException, IOException {
         populateValidOptions();
+        description_ = getClass().getName() + "('" + columnList + "', '" + optString + "')";
         String[] colNames = columnList.split(" ");
         String[] optsArr  = optString.split(" ");
         try {
             configuredOptions_ = parser_.parse(validOptions_, optsArr);
         } catch (ParseException e) {
             HelpFormatter formatter = new HelpFormatter();
-            formatter.printHelp( "[-config] [-loadKey] [-gt] [-gte] [-lt] [-lte] [-columnPrefix] [-caching] [-caster] [-limit] [-timestamp_field] [-maxTableSplits]", validOptions_ );
+            formatter.printHelp( "[-config] [-loadKey] [-keysOnly] [-countCells] [-lazy] [-gt] [-gte] [-lt] [-lte] [-ranges] [-prefixes] [-rangeFile] [-where] [-columnPrefix] [-caching] [-cachingBytes] [-cachingMillis] [-batch] [-prefetch] [-caster] [-cacheDir] [-cacheWatermark] [-limit] [-sample] [-maxVersions] [-familyMaps] [-minTimestamp] [-maxTimestamp] [-timestamp_field] [-maxTableSplits] [-orderedSplits] [-targetSplitBytes] [-salt] [-saltOrdered]", validOptions_ );
             throw e;
         }
 
-        loadRowKey_ = configuredOptions_.hasOption("loadKey");  
+        keysOnly_ = configuredOptions_.hasOption("keysOnly");
+        countCells_ = configuredOptions_.hasOption("countCells");
+        if (countCells_ && !keysOnly_) {
+            throw new IOException("-countCells only applies with -keysOnly");
+        }
+        if (keysOnly_ && configuredOptions_.hasOption("batch")) {
+            throw new IOException("-keysOnly loads whole rows, so it cannot be combined with -batch");
+        }
+        loadRowKey_ = configuredOptions_.hasOption("loadKey") || keysOnly_;
+        lazy_ = configuredOptions_.hasOption("lazy");
+        loadChunkIndex_ = configuredOptions_.hasOption("batch");
+        familyMaps_ = configuredOptions_.hasOption("familyMaps");
+        if (configuredOptions_.hasOption("where") && configuredOptions_.hasOption("batch")) {
+            throw new IOException("-where filters whole rows, so it cannot be combined with -batch");
+        }
+        if (familyMaps_ && configuredOptions_.hasOption("maxVersions")) {
+            throw new IOException("-familyMaps cannot be combined with -maxVersions");
+        }
         for (String colName : colNames) {
             columnInfo_.add(new ColumnInfo(colName));
         }
@@ -263,30 +394,75 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
 
         hbaseConfig_ = configuredOptions_.getOptionValue("config", "/etc/hbase/conf/hbase-site.xml");
         caching_ = Integer.valueOf(configuredOptions_.getOptionValue("caching", "1000"));
+        prefetch_ = Integer.valueOf(configuredOptions_.getOptionValue("prefetch", "0"));
         limit_   = Long.valueOf(configuredOptions_.getOptionValue("limit", "-1"));
+        sample_  = Double.valueOf(configuredOptions_.getOptionValue("sample", "-1"));
+        if (configuredOptions_.hasOption("sample") && (sample_ <= 0 || sample_ > 1)) {
+            throw new IllegalArgumentException("-sample must be a fraction between 0 and 1, not " + sample_);
+        }
         tsField_ = Integer.valueOf(configuredOptions_.getOptionValue("timestamp_field", "-1"));
         maxTableSplits_ = Integer.valueOf(configuredOptions_.getOptionValue("maxTableSplits", "100"));
+        targetSplitBytes_ = Long.valueOf(configuredOptions_.getOptionValue("targetSplitBytes", "-1"));
+        salt_ = Integer.valueOf(configuredOptions_.getOptionValue("salt", "0"));
+        saltOrdered_ = configuredOptions_.hasOption("saltOrdered");
+        if (salt_ > 0) {
+            Salt.checkBuckets(salt_);
+        }
         initScan();	    
     }
 
-    private void initScan() {
+    private void initScan() throws IOException {
         scan = new Scan();
-        // Set filters, if any.
+        scan.setCaching(caching_);
+        if (configuredOptions_.hasOption("batch")) {
+            scan.setBatch(Integer.valueOf(configuredOptions_.getOptionValue("batch")));
+        }
+        if (configuredOptions_.hasOption("maxVersions")) {
+            scan.setMaxVersions(Integer.valueOf(configuredOptions_.getOptionValue("maxVersions")));
+        }
+        if (configuredOptions_.hasOption("minTimestamp") || configuredOptions_.hasOption("maxTimestamp")) {
+            long minStamp = Long.valueOf(configuredOptions_.getOptionValue("minTimestamp", "0"));
+            long maxStamp = Long.valueOf(configuredOptions_.getOptionValue("maxTimestamp", String.valueOf(Long.MAX_VALUE)));
+            scan.setTimeRange(minStamp, maxStamp);
+        }
+        // Key bounds become the scan's start and stop rows rather than row filters, so
+        // region servers never read rows outside the range.
         if (configuredOptions_.hasOption("gt")) {
             gt_ = Bytes.toBytesBinary(Utils.slashisize(configuredOptions_.getOptionValue("gt")));
-            addRowFilter(CompareOp.GREATER, gt_);
         }
         if (configuredOptions_.hasOption("lt")) {
             lt_ = Bytes.toBytesBinary(Utils.slashisize(configuredOptions_.getOptionValue("lt")));
-            addRowFilter(CompareOp.LESS, lt_);
         }
         if (configuredOptions_.hasOption("gte")) {
             gte_ = Bytes.toBytesBinary(Utils.slashisize(configuredOptions_.getOptionValue("gte")));
-            addRowFilter(CompareOp.GREATER_OR_EQUAL, gte_);
         }
         if (configuredOptions_.hasOption("lte")) {
             lte_ = Bytes.toBytesBinary(Utils.slashisize(configuredOptions_.getOptionValue("lte")));
-            addRowFilter(CompareOp.LESS_OR_EQUAL, lte_);
+        }
+        if (configuredOptions_.hasOption("ranges") || configuredOptions_.hasOption("prefixes")) {
+            keyRanges_ = Lists.newArrayList();
+            if (configuredOptions_.hasOption("ranges")) {
+                keyRanges_.addAll(KeyRange.parseRanges(configuredOptions_.getOptionValue("ranges")));
+            }
+            if (configuredOptions_.hasOption("prefixes")) {
+                keyRanges_.addAll(KeyRange.parsePrefixes(configuredOptions_.getOptionValue("prefixes")));
+            }
+        }
+        KeyRange range = KeyRange.fromBounds(gt_, gte_, lt_, lte_);
+        if (LOG.isInfoEnabled() && !range.isUnbounded()) {
+            LOG.info("Restricting scan to key range " + range);
+        }
+        // A salted range is one range per bucket; HBaseTableInputFormat cuts those out itself
+        if (!configuredOptions_.hasOption("salt")) {
+            scan.setStartRow(range.getStart());
+            scan.setStopRow(range.getStop());
+        }
+
+        // Value predicates go first, so that they see every cell before the column filters
+        // below drop those that aren't loaded
+        if (configuredOptions_.hasOption("where")) {
+            where_ = new WhereClause(configuredOptions_.getOptionValue("where"));
+            addFilter(where_.getFilter());
         }
 
         // apply any column filters
@@ -319,16 +495,17 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
         if (allColumnFilters != null) {
             addFilter(allColumnFilters);
         }
-    }
-    
-    private void addRowFilter(CompareOp op, byte[] val) {
-        if (LOG.isInfoEnabled()) {
-            LOG.info("Adding filter " + op.toString() +
-                    " with value " + Bytes.toStringBinary(val));
+
+        // Strip values last, once the filters above have seen them. Stopping at the first
+        // cell of a row would hide the rest from -where, so only do that without it.
+        if (keysOnly_) {
+            addFilter(new KeyOnlyFilter());
+            if (!countCells_ && where_ == null) {
+                addFilter(new FirstKeyOnlyFilter());
+            }
         }
-        addFilter(new RowFilter(op, new BinaryComparator(val)));
     }
-
+    
     private void addFilter(Filter filter) {
         FilterList scanFilter = (FilterList) scan.getFilter();
         if (scanFilter == null) {
@@ -338,8 +515,37 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
         scan.setFilter(scanFilter);
     }
 
+    /**
+       Returns the next tuple, from the scan cache if the load is cached, adding it to the
+       cache if the load is being cached.
+     */
     @Override
     public Tuple getNext() throws IOException {
+        if (cacheHit_) {
+            return nextCached();
+        }
+        Tuple tuple = nextTuple();
+        if (cacheWriter_ != null) {
+            if (tuple != null) {
+                cacheWriter_.append(tuple);
+            } else {
+                cacheWriter_.commit();
+                cacheWriter_ = null;
+            }
+        }
+        return tuple;
+    }
+
+    private Tuple nextCached() throws IOException {
+        try {
+            if (reader == null || !reader.nextKeyValue()) return null;
+            return (Tuple) ((NullableTuple) reader.getCurrentValue()).getValueAsPigType();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private Tuple nextTuple() throws IOException {
         try {
             if (!initialized) {
                 Properties p = UDFContext.getUDFContext().getUDFProperties(this.getClass(),
@@ -352,70 +558,51 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
                 }
                 initialized = true;
             }
-            if (reader.nextKeyValue()) {
+            if (decoder_ == null) {
+                decoder_ = new ResultDecoder(columnInfo_, configuredOptions_.hasOption("maxVersions"), caster_, familyMaps_);
+            }
+            if (reader != null && reader.nextKeyValue()) {
                 ImmutableBytesWritable rowKey = (ImmutableBytesWritable)reader.getCurrentKey();
                 Result result = (Result)reader.getCurrentValue();
 
-                int tupleSize = columnInfo_.size();
+                // With -batch, a wide row arrives as several consecutive partial results
+                byte[] row = rowKey.get();
+                if (lastRow_ != null && Bytes.equals(lastRow_, row)) {
+                    chunkIndex_++;
+                } else {
+                    chunkIndex_ = 0;
+                }
+                lastRow_ = row;
 
-                // use a map of families -> qualifiers with the most recent
-                // version of the cell. Fetching multiple vesions could be a
-                // useful feature.
-                NavigableMap<byte[], NavigableMap<byte[], byte[]>> resultsMap = result.getNoVersionMap();
+                if (keysOnly_) {
+                    Tuple keyTuple = TupleFactory.getInstance().newTuple(countCells_ ? 2 : 1);
+                    keyTuple.set(0, new DataByteArray(salt_ > 0 ? Salt.unsalt(row) : row));
+                    if (countCells_) keyTuple.set(1, Long.valueOf(result.size()));
+                    return keyTuple;
+                }
 
-                if (loadRowKey_){
-                    tupleSize++;
+                List<Object> leading = Lists.newArrayListWithExpectedSize(2);
+                if (loadRowKey_) {
+                    leading.add(new DataByteArray(salt_ > 0 ? Salt.unsalt(row) : row));
+                }
+                if (loadChunkIndex_) {
+                    leading.add(chunkIndex_);
                 }
-                Tuple tuple=TupleFactory.getInstance().newTuple(tupleSize);
 
-                int startIndex=0;
-                if (loadRowKey_){
-                    tuple.set(0, new DataByteArray(rowKey.get()));
-                    startIndex++;
+                ScanStats stats = decodeStats();
+                if (lazy_) {
+                    return new LazyResultTuple(result, decoder_, stats, leading.toArray());
                 }
-                
-                for (int i = 0;i < columnInfo_.size(); ++i){
-                    int currentIndex = startIndex + i;
-
-                    ColumnInfo columnInfo = columnInfo_.get(i);
-                    if (columnInfo.isColumnMap()) {
-                        // It's a column family so we need to iterate and set all
-                        // values found
-                        NavigableMap<byte[], byte[]> cfResults = resultsMap.get(columnInfo.getColumnFamily());
-                        DataBag bagged_family = BagFactory.getInstance().newDefaultBag();
-                        
-                        if (cfResults != null) {
-                            for (byte[] quantifier : cfResults.keySet()) {
-                                // We need to check against the prefix filter to
-                                // see if this value should be included. We can't
-                                // just rely on the server-side filter, since a
-                                // user could specify multiple CF filters for the
-                                // same CF.
-                                if (columnInfo.getColumnPrefix() == null || columnInfo.hasPrefixMatch(quantifier)) {
-
-                                    byte[] cell         = cfResults.get(quantifier);
-                                    DataByteArray value = cell == null ? null : new DataByteArray(cell);
-
-                                    Tuple entry = TupleFactory.getInstance().newTuple(2);
-                                    entry.set(0, Bytes.toString(quantifier));
-                                    entry.set(1, value);
-                                    bagged_family.add(entry);
-                                }
-                            }
-                        }
-                        tuple.set(currentIndex, bagged_family);
-                    } else {
-                        // It's a column so set the value                      
-                        if (result.containsColumn(columnInfo.getColumnFamily(), columnInfo.getColumnName())) {
-                            byte[] cell=result.getValue(columnInfo.getColumnFamily(),
-                                                        columnInfo.getColumnName());
-                            DataByteArray value =
-                                (cell == null || cell.length == 0) ? new DataByteArray(ONE) : new DataByteArray(cell);
-                            tuple.set(currentIndex, value);                            
-                        } else {
-                            tuple.set(currentIndex, null);
-                        }
-                    }
+
+                Tuple tuple=TupleFactory.getInstance().newTuple(leading.size() + columnInfo_.size());
+                for (int i = 0; i < leading.size(); i++) {
+                    tuple.set(i, leading.get(i));
+                }
+                long decodeStarted = System.nanoTime();
+                decoder_.decode(result, tuple, leading.size());
+                stats.add(ScanStats.Counter.DECODE_MILLIS, System.nanoTime() - decodeStarted);
+                if (++decodedRows_ % ScanStats.FLUSH_ROWS == 0) {
+                    stats.flush();
                 }
 
                 if (LOG.isDebugEnabled()) {
@@ -428,26 +615,53 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
         } catch (InterruptedException e) {
             throw new IOException(e);
         }
+        decodeStats_.flush();
         return null;
     }
 
+    /**
+       Where decoding time is added up: the stats of the split being scanned, so that it shows
+       in the split's log line, or the loader's own for readers that keep none.
+     */
+    private ScanStats decodeStats() {
+        ScanStats stats = (reader instanceof ScanStats.Source) ? ((ScanStats.Source) reader).getStats() : null;
+        return (stats == null) ? decodeStats_ : stats;
+    }
+
     @Override
     public InputFormat getInputFormat() {      
+        if (cacheHit_) {
+            return new SequenceFileInputFormat<NullWritable, NullableTuple>();
+        }
         TableInputFormat inputFormat = new HBaseTableIFBuilder()
             .withLimit(limit_)
             .withMaxSplits(maxTableSplits_)
+            .withTargetSplitBytes(targetSplitBytes_)
+            .withPrefetch(prefetch_)
+            .withSalt(salt_, saltOrdered_)
+            .withOrderedSplits(configuredOptions_.hasOption("orderedSplits"))
+            .withSample(sample_)
+            .withAdaptiveCaching(Long.valueOf(configuredOptions_.getOptionValue("cachingBytes", "-1")),
+                                 Long.valueOf(configuredOptions_.getOptionValue("cachingMillis", "-1")))
             .withGt(gt_)
             .withGte(gte_)
             .withLt(lt_)
             .withLte(lte_)
+            .withKeyRanges(keyRanges_)
+            .withRangeFile(configuredOptions_.getOptionValue("rangeFile"))
             .withConf(m_conf)
             .build();
-        return inputFormat;
+        return (cacheDir_ != null) ? ScanCache.recordingSplits(inputFormat, cacheDir_) : inputFormat;
     }
 
     @Override
-    public void prepareToRead(RecordReader reader, PigSplit split) {
+    public void prepareToRead(RecordReader reader, PigSplit split) throws IOException {
         this.reader = reader;
+        if (cacheDir_ != null && !cacheHit_) {
+            if (cacheWriter_ != null) cacheWriter_.abort();
+            // Pig may hand a task several splits, each prepared in turn
+            cacheWriter_ = new ScanCache.Writer(cacheDir_, split.getSplitIndex() + "-" + (cacheParts_++), m_conf);
+        }
     }
 
     @Override
@@ -478,17 +692,19 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
         if (location.startsWith("hbase://")){
            tablename = location.substring(8);
         }
-        if (m_table == null) {
-            m_table = new HTable(m_conf, tablename);
-        }
-        m_table.setScannerCaching(caching_);
         m_conf.set(TableInputFormat.INPUT_TABLE, tablename);
 
         // Set up scan if it is not already set up.
-        if (m_conf.get(TableInputFormat.SCAN) != null) {
-            return;
+        if (m_conf.get(TableInputFormat.SCAN) == null) {
+            configureScan();
         }
+        // A load answered from the scan cache never talks to HBase
+        if (!useScanCache(location, tablename, job)) {
+            openTable(tablename);
+        }
+    }
 
+    private void configureScan() throws IOException {
         for (ColumnInfo columnInfo : columnInfo_) {
             // do we have a column family, or a column?
             if (columnInfo.isColumnMap()) {
@@ -500,6 +716,15 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
             }
 
         }
+        // The -where columns must come back from the scan for their filters to see them.
+        // The decoder ignores those that weren't asked for.
+        if (where_ != null) {
+            for (byte[][] column : where_.getColumns()) {
+                Map<byte[], NavigableSet<byte[]>> families = scan.getFamilyMap();
+                if (families.containsKey(column[0]) && families.get(column[0]) == null) continue;
+                scan.addColumn(column[0], column[1]);
+            }
+        }
         if (requiredFieldList != null) {
             Properties p = UDFContext.getUDFContext().getUDFProperties(this.getClass(),
                     new String[] {contextSignature});
@@ -508,6 +733,54 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
         m_conf.set(TableInputFormat.SCAN, convertScanToString(scan));
     }
 
+    /**
+       Decides, once on the front end, which snapshot directory of -cacheDir this load uses
+       and whether that snapshot is complete. A complete one becomes the input in place of the
+       table. The decision is passed to the tasks through the UDFContext.
+     */
+    private boolean useScanCache(String location, String tablename, Job job) throws IOException {
+        if (!configuredOptions_.hasOption("cacheDir")) return false;
+        Properties p = UDFContext.getUDFContext().getUDFProperties(this.getClass(),
+                new String[] {contextSignature});
+        String dir = p.getProperty(contextSignature + "_scanCacheDir");
+        if (dir == null) {
+            String watermark = configuredOptions_.getOptionValue("cacheWatermark");
+            if (watermark == null) watermark = String.valueOf(ScanCache.watermark(m_conf, tablename));
+            String rangeFileVersion = null;
+            if (configuredOptions_.hasOption("rangeFile")) {
+                Path rangeFile = new Path(configuredOptions_.getOptionValue("rangeFile"));
+                FileSystem fs = rangeFile.getFileSystem(m_conf);
+                rangeFileVersion = String.valueOf(fs.getFileStatus(rangeFile).getModificationTime());
+            }
+            Path snapshot = ScanCache.snapshotDir(new Path(configuredOptions_.getOptionValue("cacheDir")),
+                                                  description_, location, m_conf.get(TableInputFormat.SCAN),
+                                                  p.getProperty(contextSignature + "_projectedFields"),
+                                                  rangeFileVersion, watermark);
+            boolean hit = ScanCache.isComplete(snapshot, m_conf);
+            LOG.info((hit ? "Reading " + location + " from scan cache " : "Caching scan of " + location + " in ") + snapshot);
+            dir = snapshot.toString();
+            p.setProperty(contextSignature + "_scanCacheDir", dir);
+            p.setProperty(contextSignature + "_scanCacheHit", String.valueOf(hit));
+        }
+        cacheDir_ = new Path(dir);
+        cacheHit_ = Boolean.valueOf(p.getProperty(contextSignature + "_scanCacheHit"));
+        if (cacheHit_) {
+            FileInputFormat.setInputPaths(job, ScanCache.parts(cacheDir_));
+        }
+        return cacheHit_;
+    }
+
+    /**
+       Connects to the table being loaded. Loaders that never talk to the region servers from
+       the front end can skip this.
+     */
+    protected void openTable(String tablename) throws IOException {
+        if (m_table == null) {
+            m_table = new HTable(m_conf, tablename);
+        }
+        m_table.setScannerCaching(caching_);
+    }
+
     @Override
     public String relativeToAbsolutePath(String location, Path curDir)
     throws IOException {
@@ -535,6 +808,88 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
         return caster_;
     }
     
+    /**
+       The schema follows the column list: the row key and chunk index when loaded, then one
+       field per column with its declared type. Families are bags of (qualifier, value), or
+       (qualifier, timestamp, value) with -maxVersions, or maps with -familyMaps. Field names are the family and
+       qualifier (or prefix) joined by an underscore.
+     */
+    public ResourceSchema getSchema(String location, Job job) throws IOException {
+        List<ResourceFieldSchema> fields = Lists.newArrayList();
+        Set<String> names = new HashSet<String>();
+        if (keysOnly_) {
+            fields.add(fieldSchema("key", DataType.BYTEARRAY));
+            if (countCells_) fields.add(fieldSchema("cells", DataType.LONG));
+            ResourceSchema schema = new ResourceSchema();
+            schema.setFields(fields.toArray(new ResourceFieldSchema[fields.size()]));
+            return schema;
+        }
+        if (loadRowKey_) {
+            fields.add(fieldSchema(uniqueName("key", names), DataType.BYTEARRAY));
+        }
+        if (loadChunkIndex_) {
+            fields.add(fieldSchema(uniqueName("chunk", names), DataType.INTEGER));
+        }
+        for (ColumnInfo columnInfo : columnInfo_) {
+            String qualifier = columnInfo.isColumnMap() ? columnInfo.getColumnPrefix() == null ? null :
+                Bytes.toString(columnInfo.getColumnPrefix()) : Bytes.toString(columnInfo.getColumnName());
+            String name = uniqueName(Bytes.toString(columnInfo.getColumnFamily()) +
+                                     (qualifier == null ? "" : "_" + qualifier), names);
+            if (!columnInfo.isColumnMap()) {
+                fields.add(fieldSchema(name, columnInfo.getType()));
+                continue;
+            }
+            if (familyMaps_) {
+                fields.add(fieldSchema(name, DataType.MAP));
+                continue;
+            }
+            List<ResourceFieldSchema> entry = Lists.newArrayList();
+            entry.add(fieldSchema("qualifier", DataType.CHARARRAY));
+            if (configuredOptions_.hasOption("maxVersions")) {
+                entry.add(fieldSchema("timestamp", DataType.LONG));
+            }
+            entry.add(fieldSchema("value", columnInfo.getType()));
+            ResourceSchema entrySchema = new ResourceSchema();
+            entrySchema.setFields(entry.toArray(new ResourceFieldSchema[entry.size()]));
+            ResourceSchema bagSchema = new ResourceSchema();
+            bagSchema.setFields(new ResourceFieldSchema[] {
+                    new ResourceFieldSchema().setName("entry").setType(DataType.TUPLE).setSchema(entrySchema)});
+            fields.add(new ResourceFieldSchema().setName(name).setType(DataType.BAG).setSchema(bagSchema));
+        }
+        ResourceSchema schema = new ResourceSchema();
+        schema.setFields(fields.toArray(new ResourceFieldSchema[fields.size()]));
+        return schema;
+    }
+
+    private static ResourceFieldSchema fieldSchema(String name, byte type) {
+        return new ResourceFieldSchema().setName(name).setType(type);
+    }
+
+    /**
+       Turns a column name into a valid Pig alias that isn't taken yet.
+     */
+    private static String uniqueName(String name, Set<String> taken) {
+        String alias = name.replaceAll("[^A-Za-z0-9_]", "_");
+        if (alias.length() == 0 || !Character.isLetter(alias.charAt(0))) alias = "f_" + alias;
+        String unique = alias;
+        for (int i = 2; taken.contains(unique); i++) {
+            unique = alias + "_" + i;
+        }
+        taken.add(unique);
+        return unique;
+    }
+
+    public ResourceStatistics getStatistics(String location, Job job) throws IOException {
+        return null;
+    }
+
+    public String[] getPartitionKeys(String location, Job job) throws IOException {
+        return null;
+    }
+
+    public void setPartitionFilter(Expression partitionFilter) throws IOException {
+    }
+
     /*
      * StoreFunc Methods
      * @see org.apache.pig.StoreFuncInterface#getOutputFormat()
@@ -582,8 +937,9 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
             initialized = true;
         }
         ResourceFieldSchema[] fieldSchemas = (schema_ == null) ? null : schema_.getFields();
-        Put put=new Put(objToBytes(t.get(0), 
-                (fieldSchemas == null) ? DataType.findType(t.get(0)) : fieldSchemas[0].getType()));
+        byte[] rowKey = objToBytes(t.get(0),
+                (fieldSchemas == null) ? DataType.findType(t.get(0)) : fieldSchemas[0].getType());
+        Put put=new Put(salt_ > 0 ? Salt.salt(rowKey, salt_) : rowKey);
         long ts = System.currentTimeMillis();
 
         // Allow for custom timestamp
@@ -708,31 +1064,38 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
     @Override
     public RequiredFieldResponse pushProjection(
             RequiredFieldList requiredFieldList) throws FrontendException {
+        if (keysOnly_) {
+            // The columns only select rows; there is nothing to prune
+            return new RequiredFieldResponse(false);
+        }
         List<RequiredField>  requiredFields = requiredFieldList.getFields();
         List<ColumnInfo> newColumns = Lists.newArrayListWithExpectedSize(requiredFields.size());
 
         // colOffset is the offset in our columnList that we need to apply to indexes we get from requiredFields
-        // (row key is not a real column)
-        int colOffset = loadRowKey_ ? 1 : 0;
-        // projOffset is the offset to the requiredFieldList we need to apply when figuring out which columns to prune.
-        // (if key is pruned, we should skip row key's element in this list when trimming colList)
-        int projOffset = colOffset;
+        // (row key and chunk index are not real columns)
+        int chunkIndexField = loadRowKey_ ? 1 : 0;
+        int colOffset = chunkIndexField + (loadChunkIndex_ ? 1 : 0);
         this.requiredFieldList = requiredFieldList;
 
         if (requiredFieldList != null && requiredFields.size() > (columnInfo_.size() + colOffset)) {
             throw new FrontendException("The list of columns to project from HBase is larger than StaticFamilyStorage is configured to load.");
         }
 
-        if (loadRowKey_ &&
-                ( requiredFields.size() < 1 || requiredFields.get(0).getIndex() != 0)) {
-                loadRowKey_ = false;
-            projOffset = 0;
+        // (if the key or chunk index is pruned, we should skip its element in this list when trimming colList)
+        boolean keepRowKey = false;
+        boolean keepChunkIndex = false;
+        for (RequiredField requiredField : requiredFields) {
+            int fieldIndex = requiredField.getIndex();
+            if (loadRowKey_ && fieldIndex == 0) {
+                keepRowKey = true;
+            } else if (loadChunkIndex_ && fieldIndex == chunkIndexField) {
+                keepChunkIndex = true;
+            } else {
+                newColumns.add(columnInfo_.get(fieldIndex - colOffset));
             }
-        
-        for (int i = projOffset; i < requiredFields.size(); i++) {
-            int fieldIndex = requiredFields.get(i).getIndex();
-            newColumns.add(columnInfo_.get(fieldIndex - colOffset));
         }
+        loadRowKey_ = keepRowKey;
+        loadChunkIndex_ = keepChunkIndex;
 
         if (LOG.isDebugEnabled()) {
             LOG.debug("pushProjection After Projection: loadRowKey is " + loadRowKey_) ;
@@ -741,80 +1104,129 @@ public class StaticFamilyStorage extends LoadFunc implements StoreFuncInterface,
         }
         }
         columnInfo_ = newColumns;
+        decoder_ = null;
         return new RequiredFieldResponse(true);
     }
 
+    /**
+       Orders splits by the first row they read. Splits combined from regions spread over the
+       table have no place in that order, so a merge join on a load whose regions get combined
+       needs -orderedSplits. Loads with -cacheDir are refused: a run that reads the snapshot
+       gets file splits with no key order, and refusing every run keeps the first from
+       succeeding where the next would fail.
+     */
     @Override
-    public WritableComparable<InputSplit> getSplitComparable(InputSplit split)
+    public WritableComparable<ImmutableBytesWritable> getSplitComparable(InputSplit split)
             throws IOException {
-        return new WritableComparable<InputSplit>() {
-            TableSplit tsplit = new TableSplit();
-
-            @Override
-            public void readFields(DataInput in) throws IOException {
-                tsplit.readFields(in);
+        if (configuredOptions_.hasOption("cacheDir")) {
+            throw new IOException("A load with -cacheDir can't be the left side of a merge join");
+        }
+        if (split instanceof PigSplit) {
+            split = ((PigSplit) split).getWrappedSplit();
+        }
+        byte[] startRow;
+        if (split instanceof TableSplit) {
+            startRow = ((TableSplit) split).getStartRow();
+        } else if (split instanceof CombinedTableSplit) {
+            if (!((CombinedTableSplit) split).isOrdered()) {
+                throw new IOException("Combined splits of scattered regions can't be ordered; load with -orderedSplits");
             }
+            startRow = ((CombinedTableSplit) split).getStartRow();
+        } else if (split instanceof HFileSplit) {
+            startRow = ((HFileSplit) split).getStartRow();
+        } else if (split instanceof SaltedSplit) {
+            startRow = ((SaltedSplit) split).getStartRow();
+        } else if (split instanceof KeyListSplit) {
+            startRow = ((KeyListSplit) split).getFirstKey();
+        } else {
+            throw new IOException("Cannot order splits of type " + split.getClass().getName());
+        }
+        return new ImmutableBytesWritable(startRow);
+    }
 
-            @Override
-            public void write(DataOutput out) throws IOException {
-                tsplit.write(out);
-            }
+    protected boolean hasOption(String option) {
+        return configuredOptions_.hasOption(option);
+    }
 
-            @Override
-            public int compareTo(InputSplit split) {
-                return tsplit.compareTo((TableSplit) split);
-            }
-        };
+    /**
+       Whether the load is restricted to a list of key ranges rather than a single range.
+     */
+    protected boolean hasKeyRanges() {
+        return keyRanges_ != null || configuredOptions_.hasOption("rangeFile");
     }
 
     /**
-     * Class to encapsulate logic around which column names were specified in each
-     * position of the column list. Users can specify columns names in one of 4
-     * ways: 'Foo:', 'Foo:*', 'Foo:bar*' or 'Foo:bar'. The first 3 result in a
-     * Map being added to the tuple, while the last results in a scalar. The 3rd
-     * form results in a prefix-filtered Map.
+       Prepares this table to be the right hand side of <code>JOIN ... USING 'merge'</code>.
+       The join key must be the row key, loaded as the first field with -loadKey.
      */
-    private class ColumnInfo {
-
-        final String originalColumnName;  // always set
-        final byte[] columnFamily; // always set
-        final byte[] columnName; // set if it exists and doesn't contain '*'
-        final byte[] columnPrefix; // set if contains a prefix followed by '*'
-
-        public ColumnInfo(String colName) {
-            originalColumnName = colName;
-            String[] cfAndColumn = colName.split(COLON, 2);
-
-            //CFs are byte[1] and columns are byte[2]
-            columnFamily = Bytes.toBytes(cfAndColumn[0]);
-            if (cfAndColumn.length > 1 &&
-                    cfAndColumn[1].length() > 0 && !ASTERISK.equals(cfAndColumn[1])) {
-                if (cfAndColumn[1].endsWith(ASTERISK)) {
-                    columnPrefix = Bytes.toBytes(cfAndColumn[1].substring(0,
-                            cfAndColumn[1].length() - 1));
-                    columnName = null;
-                }
-                else {
-                    columnName   = Bytes.toBytes(cfAndColumn[1]);
-                    columnPrefix = null;
-                }
-            } else {
-              columnPrefix = null;
-              columnName   = null;
-            }
+    public void initialize(Configuration conf) throws IOException {
+        if (!loadRowKey_) {
+            throw new IOException("Merge joins against an HBase table join on the row key; load it with -loadKey");
         }
+        if (hasKeyRanges()) {
+            throw new IOException("Merge joins against an HBase table can't use -ranges, -prefixes or -rangeFile");
+        }
+        m_conf = conf;
+    }
 
-        public byte[] getColumnFamily() { return columnFamily; }
-        public byte[] getColumnName()   { return columnName; }
-        public byte[] getColumnPrefix() { return columnPrefix; }
-        public boolean isColumnMap()    { return columnName == null; }
-        
-        public boolean hasPrefixMatch(byte[] qualifier) {
-            return Bytes.startsWith(qualifier, columnPrefix);
+    /**
+       Starts reading at the first row at or after the given join key, with an ordinary
+       scanner that still honours the load's own key range and columns. A salted table is
+       read from every bucket and merged back into key order.
+     */
+    public void seekNear(Tuple keys) throws IOException {
+        close();
+        Scan seekScan = convertStringToScan(m_conf.get(TableInputFormat.SCAN));
+        KeyRange range = KeyRange.fromBounds(gt_, gte_, lt_, lte_);
+        byte[] startRow = range.getStart();
+        if (keys != null && keys.size() > 0 && !keys.isNull(0)) {
+            Object key = keys.get(0);
+            byte[] row = (key instanceof DataByteArray) ? ((DataByteArray) key).get() : Bytes.toBytes(key.toString());
+            if (Bytes.compareTo(row, startRow) > 0) startRow = row;
+        }
+        byte[] stopRow = range.getStop();
+        if (stopRow.length > 0 && Bytes.compareTo(startRow, stopRow) >= 0) {
+            return;
         }
 
-        @Override
-        public String toString() { return originalColumnName; }
+        if (salt_ > 0) {
+            HBaseTableInputFormat inputFormat = new HBaseTableIFBuilder().withSalt(salt_, true).withConf(m_conf).build();
+            SaltedSplit split = new SaltedSplit(Bytes.toBytes(m_conf.get(TableInputFormat.INPUT_TABLE)), startRow, stopRow, salt_, "");
+            seekReader_ = inputFormat.createRecordReader(split, null);
+            try {
+                seekReader_.initialize(split, null);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        } else {
+            seekScan.setStartRow(startRow);
+            seekScan.setStopRow(stopRow);
+            seekTable_ = new HTable(m_conf, m_conf.get(TableInputFormat.INPUT_TABLE));
+            TableRecordReader tableReader = new TableRecordReader();
+            tableReader.setHTable(seekTable_);
+            tableReader.setScan(seekScan);
+            tableReader.init();
+            seekReader_ = tableReader;
+        }
+        reader = seekReader_;
+        lastRow_ = null;
+    }
+
+    public void close() throws IOException {
+        if (seekReader_ != null) {
+            seekReader_.close();
+            seekReader_ = null;
+            reader = null;
+        }
+        if (seekTable_ != null) {
+            seekTable_.close();
+            seekTable_ = null;
+        }
     }
 
+    private static Scan convertStringToScan(String base64) throws IOException {
+        Scan scan = new Scan();
+        scan.readFields(new DataInputStream(new ByteArrayInputStream(Base64.decode(base64))));
+        return scan;
+    }
 }
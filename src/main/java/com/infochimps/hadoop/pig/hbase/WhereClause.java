@@ -0,0 +1,164 @@
+package com.infochimps.hadoop.pig.hbase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.pig.impl.util.Utils;
+
+/**
+   A predicate on cell values, parsed from the -where option into SingleColumnValueFilters
+   so that region servers drop rows that don't match before they are sent. The grammar is
+   <pre>
+   expr       := term ( '||' term )*
+   term       := factor ( '&amp;&amp;' factor )*
+   factor     := '(' expr ')' | family:qualifier op literal
+   op         := == | != | &lt; | &lt;= | &gt; | &gt;=
+   literal    := "text" | text | int(n) | long(n) | float(x) | double(x)
+   </pre>
+   with no spaces, since the option string is split on them. Text literals are
+   double-slash-escaped binary and are compared as bytes, which is what -caster
+   Utf8StorageConverter stores; int(...) and the other numeric forms are encoded as
+   HBaseBinaryConverter stores numbers. Byte comparison orders big-endian numbers correctly
+   only when both are non-negative. A row without the column never matches, as with a Pig
+   FILTER on a null field.
+ */
+class WhereClause {
+
+    private final String text_;
+    private int pos_ = 0;
+    private final List<byte[][]> columns_ = new ArrayList<byte[][]>();
+    private final Filter filter_;
+
+    public WhereClause(String text) {
+        text_ = text;
+        filter_ = parseExpr();
+        if (pos_ < text_.length()) {
+            throw error("unexpected '" + text_.substring(pos_) + "'");
+        }
+    }
+
+    public Filter getFilter() {
+        return filter_;
+    }
+
+    /**
+       The (family, qualifier) of every column the predicate reads. The scan has to return
+       them for the filters to see their values.
+     */
+    public List<byte[][]> getColumns() {
+        return columns_;
+    }
+
+    private Filter parseExpr() {
+        Filter first = parseTerm();
+        if (!lookingAt("||")) return first;
+        FilterList any = new FilterList(FilterList.Operator.MUST_PASS_ONE);
+        any.addFilter(first);
+        while (consume("||")) {
+            any.addFilter(parseTerm());
+        }
+        return any;
+    }
+
+    private Filter parseTerm() {
+        Filter first = parseFactor();
+        if (!lookingAt("&&")) return first;
+        FilterList all = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+        all.addFilter(first);
+        while (consume("&&")) {
+            all.addFilter(parseFactor());
+        }
+        return all;
+    }
+
+    private Filter parseFactor() {
+        if (consume("(")) {
+            Filter inner = parseExpr();
+            if (!consume(")")) throw error("missing ')'");
+            return inner;
+        }
+        int start = pos_;
+        while (pos_ < text_.length() && "=!<>".indexOf(text_.charAt(pos_)) < 0) pos_++;
+        String column = text_.substring(start, pos_);
+        int colon = column.indexOf(':');
+        if (colon <= 0 || colon == column.length() - 1) {
+            throw error("expected family:qualifier, not '" + column + "'");
+        }
+        byte[] family = Bytes.toBytes(column.substring(0, colon));
+        byte[] qualifier = Bytes.toBytesBinary(Utils.slashisize(column.substring(colon + 1)));
+        columns_.add(new byte[][] {family, qualifier});
+
+        CompareOp op = parseOp();
+        SingleColumnValueFilter filter = new SingleColumnValueFilter(family, qualifier, op, parseLiteral());
+        filter.setFilterIfMissing(true);
+        return filter;
+    }
+
+    private CompareOp parseOp() {
+        if (consume("==")) return CompareOp.EQUAL;
+        if (consume("!=")) return CompareOp.NOT_EQUAL;
+        if (consume("<=")) return CompareOp.LESS_OR_EQUAL;
+        if (consume(">=")) return CompareOp.GREATER_OR_EQUAL;
+        if (consume("<"))  return CompareOp.LESS;
+        if (consume(">"))  return CompareOp.GREATER;
+        throw error("expected a comparison");
+    }
+
+    private byte[] parseLiteral() {
+        if (consume("\"")) {
+            int end = text_.indexOf('"', pos_);
+            if (end < 0) throw error("unterminated string");
+            String literal = text_.substring(pos_, end);
+            pos_ = end + 1;
+            return Bytes.toBytesBinary(Utils.slashisize(literal));
+        }
+        int start = pos_;
+        while (pos_ < text_.length() && !lookingAt("&&") && !lookingAt("||") && !lookingAt(")")) {
+            if (text_.charAt(pos_) == '(') {
+                int close = text_.indexOf(')', pos_);
+                if (close < 0) throw error("missing ')'");
+                pos_ = close;
+            }
+            pos_++;
+        }
+        String literal = text_.substring(start, pos_);
+        String number = unwrap(literal);
+        try {
+            if (literal.startsWith("int("))    return Bytes.toBytes(Integer.parseInt(number));
+            if (literal.startsWith("long("))   return Bytes.toBytes(Long.parseLong(number));
+            if (literal.startsWith("float("))  return Bytes.toBytes(Float.parseFloat(number));
+            if (literal.startsWith("double(")) return Bytes.toBytes(Double.parseDouble(number));
+        } catch (NumberFormatException e) {
+            throw error("bad number '" + literal + "'");
+        }
+        return Bytes.toBytesBinary(Utils.slashisize(literal));
+    }
+
+    /**
+       The argument of a literal like long(42), or null if it isn't one.
+     */
+    private static String unwrap(String literal) {
+        int open = literal.indexOf('(');
+        if (open < 0 || !literal.endsWith(")")) return null;
+        return literal.substring(open + 1, literal.length() - 1);
+    }
+
+    private boolean lookingAt(String token) {
+        return text_.startsWith(token, pos_);
+    }
+
+    private boolean consume(String token) {
+        if (!lookingAt(token)) return false;
+        pos_ += token.length();
+        return true;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Bad -where predicate at position " + pos_ + " of '" + text_ + "': " + message);
+    }
+}